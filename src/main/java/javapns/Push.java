@@ -44,7 +44,7 @@ public class Push {
 	 * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
 	 */
 	public static PushedNotifications alert(String message, Object keystore, String password, boolean production, Object devices) throws CommunicationException, KeystoreException {
-		return sendPayload(PushNotificationPayload.alert(message), keystore, password, production, devices);
+		return sendPayload(PushNotificationPayload.alert(message), keystore, password, production, devices, RetentionPolicy.ALL);
 	}
 
 
@@ -61,7 +61,7 @@ public class Push {
 	 * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
 	 */
 	public static PushedNotifications badge(int badge, Object keystore, String password, boolean production, Object devices) throws CommunicationException, KeystoreException {
-		return sendPayload(PushNotificationPayload.badge(badge), keystore, password, production, devices);
+		return sendPayload(PushNotificationPayload.badge(badge), keystore, password, production, devices, RetentionPolicy.ALL);
 	}
 
 
@@ -78,7 +78,7 @@ public class Push {
 	 * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
 	 */
 	public static PushedNotifications sound(String sound, Object keystore, String password, boolean production, Object devices) throws CommunicationException, KeystoreException {
-		return sendPayload(PushNotificationPayload.sound(sound), keystore, password, production, devices);
+		return sendPayload(PushNotificationPayload.sound(sound), keystore, password, production, devices, RetentionPolicy.ALL);
 	}
 
 
@@ -97,7 +97,7 @@ public class Push {
 	 * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
 	 */
 	public static PushedNotifications combined(String message, int badge, String sound, Object keystore, String password, boolean production, Object devices) throws CommunicationException, KeystoreException {
-		return sendPayload(PushNotificationPayload.combined(message, badge, sound), keystore, password, production, devices);
+		return sendPayload(PushNotificationPayload.combined(message, badge, sound), keystore, password, production, devices, RetentionPolicy.ALL);
 	}
 
 
@@ -113,7 +113,7 @@ public class Push {
 	 * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
 	 */
 	public static PushedNotifications contentAvailable(Object keystore, String password, boolean production, Object devices) throws CommunicationException, KeystoreException {
-		return sendPayload(NewsstandNotificationPayload.contentAvailable(), keystore, password, production, devices);
+		return sendPayload(NewsstandNotificationPayload.contentAvailable(), keystore, password, production, devices, RetentionPolicy.ALL);
 	}
 
 
@@ -129,7 +129,7 @@ public class Push {
 	 * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
 	 */
 	public static PushedNotifications test(Object keystore, String password, boolean production, Object devices) throws CommunicationException, KeystoreException {
-		return sendPayload(PushNotificationPayload.test(), keystore, password, production, devices);
+		return sendPayload(PushNotificationPayload.test(), keystore, password, production, devices, RetentionPolicy.ALL);
 	}
 
 
@@ -146,7 +146,7 @@ public class Push {
 	 * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
 	 */
 	public static PushedNotifications payload(Payload payload, Object keystore, String password, boolean production, Object devices) throws CommunicationException, KeystoreException {
-		return sendPayload(payload, keystore, password, production, devices);
+		return sendPayload(payload, keystore, password, production, devices, RetentionPolicy.ALL);
 	}
 
 
@@ -158,12 +158,14 @@ public class Push {
 	 * @param password the keystore's password.
 	 * @param production true to use Apple's production servers, false to use the sandbox servers.
 	 * @param devices a list or an array of tokens or devices: {@link java.lang.String String[]}, {@link java.util.List}<{@link java.lang.String}>, {@link javapns.devices.Device Device[]}, {@link java.util.List}<{@link javapns.devices.Device}>, {@link java.lang.String} or {@link javapns.devices.Device}
+	 * @param retentionPolicy the policy deciding which pushed notifications are retained in the returned list
 	 * @return a list of pushed notifications, each with details on transmission results and error (if any)
 	 * @throws KeystoreException thrown if an error occurs when loading the keystore
 	 * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
 	 */
-	private static PushedNotifications sendPayload(Payload payload, Object keystore, String password, boolean production, Object devices) throws CommunicationException, KeystoreException {
+	private static PushedNotifications sendPayload(Payload payload, Object keystore, String password, boolean production, Object devices, RetentionPolicy retentionPolicy) throws CommunicationException, KeystoreException {
 		PushedNotifications notifications = new PushedNotifications();
+		notifications.setRetentionPolicy(retentionPolicy);
 		if (payload == null) return notifications;
 		PushNotificationManager pushManager = new PushNotificationManager();
 		try {
@@ -203,10 +205,30 @@ public class Push {
 	 * @throws Exception thrown if any critical exception occurs
 	 */
 	public static PushedNotifications payload(Payload payload, Object keystore, String password, boolean production, int numberOfThreads, Object devices) throws Exception {
-		if (numberOfThreads <= 0) return sendPayload(payload, keystore, password, production, devices);
+		return payload(payload, keystore, password, production, numberOfThreads, devices, RetentionPolicy.ALL);
+	}
+
+
+	/**
+	 * Push a preformatted payload to a list of devices using multiple simulatenous threads (and connections),
+	 * retaining only the pushed notifications allowed by a retention policy.
+	 * 
+	 * @param payload a simple or complex payload to push.
+	 * @param keystore a keystore containing your private key and the certificate signed by Apple ({@link java.io.File}, {@link java.io.InputStream}, byte[], {@link java.security.KeyStore} or {@link java.lang.String} for a file path)
+	 * @param password the keystore's password.
+	 * @param production true to use Apple's production servers, false to use the sandbox servers.
+	 * @param numberOfThreads the number of parallel threads to use to push the notifications
+	 * @param devices a list or an array of tokens or devices: {@link java.lang.String String[]}, {@link java.util.List}<{@link java.lang.String}>, {@link javapns.devices.Device Device[]}, {@link java.util.List}<{@link javapns.devices.Device}>, {@link java.lang.String} or {@link javapns.devices.Device}
+	 * @param retentionPolicy the policy deciding which pushed notifications are retained in the returned list (ex: {@link RetentionPolicy#FAILURES_ONLY})
+	 * @return a list of retained pushed notifications, along with counters for all notifications pushed
+	 * @throws Exception thrown if any critical exception occurs
+	 */
+	public static PushedNotifications payload(Payload payload, Object keystore, String password, boolean production, int numberOfThreads, Object devices, RetentionPolicy retentionPolicy) throws Exception {
+		if (numberOfThreads <= 0) return sendPayload(payload, keystore, password, production, devices, retentionPolicy);
 		AppleNotificationServer server = new AppleNotificationServerBasicImpl(keystore, password, production);
 		List<Device> deviceList = Devices.asDevices(devices);
 		NotificationThreads threads = new NotificationThreads(server, payload, deviceList, numberOfThreads);
+		threads.setRetentionPolicy(retentionPolicy);
 		threads.start();
 		try {
 			threads.waitForAllThreads(true);
@@ -248,7 +270,7 @@ public class Push {
 	 * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
 	 */
 	public static PushedNotifications payloads(Object keystore, String password, boolean production, Object payloadDevicePairs) throws CommunicationException, KeystoreException {
-		return sendPayloads(keystore, password, production, payloadDevicePairs);
+		return sendPayloads(keystore, password, production, payloadDevicePairs, RetentionPolicy.ALL);
 	}
 
 
@@ -264,10 +286,29 @@ public class Push {
 	 * @throws Exception thrown if any critical exception occurs
 	 */
 	public static PushedNotifications payloads(Object keystore, String password, boolean production, int numberOfThreads, Object payloadDevicePairs) throws Exception {
-		if (numberOfThreads <= 0) return sendPayloads(keystore, password, production, payloadDevicePairs);
+		return payloads(keystore, password, production, numberOfThreads, payloadDevicePairs, RetentionPolicy.ALL);
+	}
+
+
+	/**
+	 * Push a different preformatted payload for each device using multiple simulatenous threads (and connections),
+	 * retaining only the pushed notifications allowed by a retention policy.
+	 * 
+	 * @param keystore a keystore containing your private key and the certificate signed by Apple ({@link java.io.File}, {@link java.io.InputStream}, byte[], {@link java.security.KeyStore} or {@link java.lang.String} for a file path)
+	 * @param password the keystore's password.
+	 * @param production true to use Apple's production servers, false to use the sandbox servers.
+	 * @param numberOfThreads the number of parallel threads to use to push the notifications
+	 * @param payloadDevicePairs a list or an array of PayloadPerDevice: {@link java.util.List}<{@link javapns.notification.PayloadPerDevice}>, {@link javapns.notification.PayloadPerDevice PayloadPerDevice[]} or {@link javapns.notification.PayloadPerDevice}
+	 * @param retentionPolicy the policy deciding which pushed notifications are retained in the returned list (ex: {@link RetentionPolicy#FAILURES_ONLY})
+	 * @return a list of retained pushed notifications, along with counters for all notifications pushed
+	 * @throws Exception thrown if any critical exception occurs
+	 */
+	public static PushedNotifications payloads(Object keystore, String password, boolean production, int numberOfThreads, Object payloadDevicePairs, RetentionPolicy retentionPolicy) throws Exception {
+		if (numberOfThreads <= 0) return sendPayloads(keystore, password, production, payloadDevicePairs, retentionPolicy);
 		AppleNotificationServer server = new AppleNotificationServerBasicImpl(keystore, password, production);
 		List<PayloadPerDevice> payloadPerDevicePairs = Devices.asPayloadsPerDevices(payloadDevicePairs);
 		NotificationThreads threads = new NotificationThreads(server, payloadPerDevicePairs, numberOfThreads);
+		threads.setRetentionPolicy(retentionPolicy);
 		threads.start();
 		try {
 			threads.waitForAllThreads(true);
@@ -284,12 +325,14 @@ public class Push {
 	 * @param password the keystore's password.
 	 * @param production true to use Apple's production servers, false to use the sandbox servers.
 	 * @param payloadDevicePairs a list or an array of PayloadPerDevice: {@link java.util.List}<{@link javapns.notification.PayloadPerDevice}>, {@link javapns.notification.PayloadPerDevice PayloadPerDevice[]} or {@link javapns.notification.PayloadPerDevice}
+	 * @param retentionPolicy the policy deciding which pushed notifications are retained in the returned list
 	 * @return a list of pushed notifications, each with details on transmission results and error (if any)
 	 * @throws KeystoreException thrown if an error occurs when loading the keystore
 	 * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
 	 */
-	private static PushedNotifications sendPayloads(Object keystore, String password, boolean production, Object payloadDevicePairs) throws CommunicationException, KeystoreException {
+	private static PushedNotifications sendPayloads(Object keystore, String password, boolean production, Object payloadDevicePairs, RetentionPolicy retentionPolicy) throws CommunicationException, KeystoreException {
 		PushedNotifications notifications = new PushedNotifications();
+		notifications.setRetentionPolicy(retentionPolicy);
 		if (payloadDevicePairs == null) return notifications;
 		PushNotificationManager pushManager = new PushNotificationManager();
 		try {
@@ -297,11 +340,13 @@ public class Push {
 			pushManager.initializeConnection(server);
 			List<PayloadPerDevice> pairs = Devices.asPayloadsPerDevices(payloadDevicePairs);
 			notifications.setMaxRetained(pairs.size());
+			/* Encode payload objects shared by many devices only once or twice, while pushed notifications keep the original payloads */
+			PayloadInterner interner = new PayloadInterner();
 			for (PayloadPerDevice ppd : pairs) {
 				Device device = ppd.getDevice();
 				Payload payload = ppd.getPayload();
 				try {
-					PushedNotification notification = pushManager.sendNotification(device, payload, false);
+					PushedNotification notification = pushManager.sendNotification(device, payload, interner.intern(payload), false);
 					notifications.add(notification);
 				} catch (Exception e) {
 					notifications.add(new PushedNotification(device, payload, e));
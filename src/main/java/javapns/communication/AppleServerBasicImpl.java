@@ -8,15 +8,30 @@ import javapns.communication.exceptions.*;
  * A basic and abstract implementation of the AppleServer interface
  * intended to facilitate rapid deployment.
  * 
+ * <p>Certificates can be rotated without stopping senders.  A keystore provided as a File or a String path is checked
+ * each time a connection is opened, so new connections automatically use the new certificate once the file is replaced.
+ * Other keystores can be replaced with {@link #setKeystore(Object, String)}.  Either way, connections already open keep
+ * using the keystore they were opened with until they are restarted.</p>
+ * 
  * @author Sylvain Pedneault
  */
 public abstract class AppleServerBasicImpl implements AppleServer {
 
-	private Object keystore;
-	private final String password;
+	/* The keystore and its password, always replaced together */
+	private volatile Credentials credentials;
 	private final String type;
 	private String proxyHost;
 	private int proxyPort;
+	private String tlsProvider;
+	private String[] tlsProtocols;
+	private String[] cipherSuites;
+	private boolean cipherSuitesRestricted;
+
+	/**
+	 * Cipher suites using ephemeral elliptic-curve key exchange and AES-GCM, which are the cheapest to negotiate and
+	 * use on modern JVMs while providing forward secrecy.
+	 */
+	public static final String[] ECDHE_AES_GCM_CIPHER_SUITES = { "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384" };
 
 
 	/**
@@ -29,22 +44,47 @@ public abstract class AppleServerBasicImpl implements AppleServer {
 	 */
 	public AppleServerBasicImpl(Object keystore, String password, String type) throws KeystoreException {
 		KeystoreManager.validateKeystoreParameter(keystore);
-		this.keystore = keystore;
-		this.password = password;
 		this.type = type;
 
 		/* Make sure that the keystore reference is reusable. */
-		this.keystore = KeystoreManager.ensureReusableKeystore(this, this.keystore);
+		this.credentials = new Credentials(KeystoreManager.ensureReusableKeystore(this, keystore, password), password);
+	}
+
+
+	/**
+	 * Replace the keystore used by new connections (ex: when a certificate is renewed).
+	 * The new keystore is loaded before being put into service, so that an invalid keystore or password is reported here
+	 * instead of breaking new connections.  Connections already open are not affected.
+	 * 
+	 * @param keystore the new keystore (can be a File, an InputStream, a String for a file path, a byte[] array or a KeyStore)
+	 * @param password the new keystore's password
+	 * @throws KeystoreException thrown if the new keystore cannot be loaded
+	 */
+	public void setKeystore(Object keystore, String password) throws KeystoreException {
+		KeystoreManager.validateKeystoreParameter(keystore);
+		keystore = KeystoreManager.ensureReusableKeystore(this, keystore, password);
+		KeystoreManager.loadKeystore(this, keystore, password);
+		this.credentials = new Credentials(keystore, password);
 	}
 
 
 	public InputStream getKeystoreStream() throws InvalidKeystoreReferenceException {
-		return KeystoreManager.streamKeystore(keystore);
+		return KeystoreManager.streamKeystore(credentials.keystore);
+	}
+
+
+	/**
+	 * Get the current keystore reference and password, which are replaced together.
+	 * 
+	 * @return the current credentials
+	 */
+	Credentials getCredentials() {
+		return credentials;
 	}
 
 
 	public String getKeystorePassword() {
-		return password;
+		return credentials.password;
 	}
 
 
@@ -68,4 +108,91 @@ public abstract class AppleServerBasicImpl implements AppleServer {
 		this.proxyPort = proxyPort;
 	}
 
+
+	public String getTLSProvider() {
+		return tlsProvider;
+	}
+
+
+	/**
+	 * Select the security provider implementing TLS for connections to this server (ex: a native-backed provider installed in the JVM).
+	 * If the provider is not installed when a connection is created, the default provider is used instead.
+	 * 
+	 * @param tlsProvider the name of a registered security provider, or null to use the default provider
+	 */
+	public void setTLSProvider(String tlsProvider) {
+		this.tlsProvider = tlsProvider;
+	}
+
+
+	public String[] getTLSProtocols() {
+		return tlsProtocols;
+	}
+
+
+	/**
+	 * Restrict the protocol versions that connections to this server may negotiate.
+	 * Protocols not supported by the TLS provider are ignored.
+	 * 
+	 * @param tlsProtocols protocol names (ex: "TLSv1.2"), or null to use the provider's defaults
+	 */
+	public void setTLSProtocols(String... tlsProtocols) {
+		this.tlsProtocols = tlsProtocols;
+	}
+
+
+	public String[] getCipherSuites() {
+		return cipherSuites;
+	}
+
+
+	/**
+	 * Determine if connections are restricted to the cipher suites provided, instead of merely preferring them.
+	 * 
+	 * @return true if only the cipher suites provided are enabled
+	 */
+	public boolean isCipherSuitesRestricted() {
+		return cipherSuitesRestricted;
+	}
+
+
+	/**
+	 * Offer some cipher suites first, followed by the provider's other default suites (ex: {@link #ECDHE_AES_GCM_CIPHER_SUITES}).
+	 * Cipher suites not supported by the TLS provider are ignored.
+	 * 
+	 * @param cipherSuites cipher suite names, in order of preference, or null to use the provider's defaults
+	 */
+	public void setPreferredCipherSuites(String... cipherSuites) {
+		this.cipherSuites = cipherSuites;
+		this.cipherSuitesRestricted = false;
+	}
+
+
+	/**
+	 * Only enable the cipher suites provided, in that order.
+	 * Cipher suites not supported by the TLS provider are ignored, and the provider's defaults are used if none is supported.
+	 * 
+	 * @param cipherSuites cipher suite names, in order of preference, or null to use the provider's defaults
+	 */
+	public void setCipherSuites(String... cipherSuites) {
+		this.cipherSuites = cipherSuites;
+		this.cipherSuitesRestricted = true;
+	}
+
+
+	/**
+	 * A keystore reference (File, byte[], KeyStore or String for a file path) and its password.
+	 */
+	static class Credentials {
+
+		final Object keystore;
+		final String password;
+
+
+		Credentials(Object keystore, String password) {
+			this.keystore = keystore;
+			this.password = password;
+		}
+	}
+
 }
@@ -6,12 +6,18 @@ import org.apache.log4j.Logger;
 
 import javax.net.ssl.*;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.security.KeyStore;
+import java.security.NoSuchProviderException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <h1>Class representing an abstract connection to an Apple server</h1>
@@ -36,20 +42,52 @@ public abstract class ConnectionToAppleServer {
 	/* JKS */
 	public static final String KEYSTORE_TYPE_JKS = "JKS";
 
+	private static volatile int connectTimeout = 30000;
+	private static volatile long addressCacheTTL = 60000;
+
+	/* Maximum number of SSL socket factories kept for reuse */
+	private static final int MAXIMUM_CACHED_SOCKET_FACTORIES = 16;
+
+	/* SSL socket factories, by keystore, password and provider, least recently used first */
+	private static final Map<SocketFactoryKey, SSLSocketFactory> socketFactories = new LinkedHashMap<SocketFactoryKey, SSLSocketFactory>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<SocketFactoryKey, SSLSocketFactory> eldest) {
+			return size() > MAXIMUM_CACHED_SOCKET_FACTORIES;
+		}
+	};
+
 	private KeyStore keyStore;
 	private SSLSocketFactory socketFactory;
 	private AppleServer server;
 
+	/* The password of the keystore loaded for this connection, which may differ from the server's if its keystore was replaced since */
+	private String keystorePassword;
+
+	/* Duration of the last TLS handshake, in milliseconds */
+	private long handshakeTime = -1;
+
 
 	/**
-	 * Builds a connection to an Apple server.
+	 * Builds a connection to an Apple server, using the server's current keystore.
 	 * 
 	 * @param server connection details
 	 * @throws KeystoreException thrown if an error occurs when loading the keystore
 	 */
 	public ConnectionToAppleServer(AppleServer server) throws KeystoreException {
 		this.server = server;
-		this.keyStore = KeystoreManager.loadKeystore(server);
+		if (server instanceof AppleServerBasicImpl) {
+			/* Take the keystore and its password together, in case they are being replaced */
+			AppleServerBasicImpl.Credentials credentials = ((AppleServerBasicImpl) server).getCredentials();
+			this.keystorePassword = credentials.password;
+			this.keyStore = KeystoreManager.loadKeystore(server, credentials.keystore, credentials.password);
+		} else {
+			this.keystorePassword = server.getKeystorePassword();
+			this.keyStore = KeystoreManager.loadKeystore(server);
+		}
 	}
 
 
@@ -62,6 +100,7 @@ public abstract class ConnectionToAppleServer {
 	public ConnectionToAppleServer(AppleServer server, KeyStore keystore) {
 		this.server = server;
 		this.keyStore = keystore;
+		this.keystorePassword = server.getKeystorePassword();
 	}
 
 
@@ -95,7 +134,7 @@ public abstract class ConnectionToAppleServer {
 			KeyStore keystore = getKeystore();
 			KeyManagerFactory kmf = KeyManagerFactory.getInstance(ALGORITHM);
 			try {
-				char[] password = KeystoreManager.getKeystorePasswordForSSL(server);
+				char[] password = KeystoreManager.getKeystorePasswordForSSL(keystorePassword);
 				kmf.init(keystore, password);
 			} catch (Exception e) {
 				e = KeystoreManager.wrapKeystoreException(e);
@@ -103,7 +142,7 @@ public abstract class ConnectionToAppleServer {
 			}
 
 			// Get the SSLContext to help create SSLSocketFactory			
-			SSLContext sslc = SSLContext.getInstance(PROTOCOL);
+			SSLContext sslc = createSSLContext();
 			sslc.init(kmf.getKeyManagers(), trustManagers, null);
 
 			return sslc.getSocketFactory();
@@ -113,6 +152,91 @@ public abstract class ConnectionToAppleServer {
 	}
 
 
+	private SSLContext createSSLContext() throws Exception {
+		String provider = server instanceof AppleServerBasicImpl ? ((AppleServerBasicImpl) server).getTLSProvider() : null;
+		if (provider != null) {
+			try {
+				return SSLContext.getInstance(PROTOCOL, provider);
+			} catch (NoSuchProviderException e) {
+				logger.warn("TLS provider " + provider + " is not installed, using the default provider instead");
+			}
+		}
+		return SSLContext.getInstance(PROTOCOL);
+	}
+
+
+	/**
+	 * Apply the server's protocol and cipher suite settings to a new socket.
+	 */
+	private void configureSSLSocket(SSLSocket socket) {
+		if (!(server instanceof AppleServerBasicImpl)) return;
+		AppleServerBasicImpl settings = (AppleServerBasicImpl) server;
+
+		String[] protocols = settings.getTLSProtocols();
+		if (protocols != null) {
+			List<String> enabled = retainSupported(protocols, socket.getSupportedProtocols());
+			if (!enabled.isEmpty()) socket.setEnabledProtocols(enabled.toArray(new String[enabled.size()]));
+		}
+
+		String[] cipherSuites = settings.getCipherSuites();
+		if (cipherSuites != null) {
+			List<String> enabled = retainSupported(cipherSuites, socket.getSupportedCipherSuites());
+			if (!enabled.isEmpty()) {
+				if (!settings.isCipherSuitesRestricted()) {
+					for (String suite : socket.getEnabledCipherSuites())
+						if (!enabled.contains(suite)) enabled.add(suite);
+				}
+				socket.setEnabledCipherSuites(enabled.toArray(new String[enabled.size()]));
+			}
+		}
+	}
+
+
+	private static List<String> retainSupported(String[] wanted, String[] supported) {
+		List<String> supportedList = Arrays.asList(supported);
+		List<String> retained = new ArrayList<String>();
+		for (String name : wanted)
+			if (supportedList.contains(name) && !retained.contains(name)) retained.add(name);
+		return retained;
+	}
+
+
+	/**
+	 * Configure a new socket and complete its TLS handshake right away, so that handshake failures
+	 * are reported here and the time spent negotiating is measured.
+	 */
+	private SSLSocket handshake(SSLSocket socket) throws IOException {
+		configureSSLSocket(socket);
+		long start = System.nanoTime();
+		try {
+			/* Do not let an unresponsive server hang the handshake indefinitely */
+			int timeout = socket.getSoTimeout();
+			socket.setSoTimeout(connectTimeout);
+			socket.startHandshake();
+			socket.setSoTimeout(timeout);
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (Exception ignored) {
+			}
+			throw e;
+		}
+		handshakeTime = (System.nanoTime() - start) / 1000000;
+		if (logger.isDebugEnabled()) logger.debug("Handshake completed in " + handshakeTime + " ms using " + socket.getSession().getProtocol() + " " + socket.getSession().getCipherSuite());
+		return socket;
+	}
+
+
+	/**
+	 * Get the time spent on the TLS handshake of the last socket created by this connection.
+	 * 
+	 * @return a duration in milliseconds, or -1 if no socket was created yet
+	 */
+	public long getHandshakeTime() {
+		return handshakeTime;
+	}
+
+
 	public abstract String getServerHost();
 
 
@@ -121,12 +245,40 @@ public abstract class ConnectionToAppleServer {
 
 	/**
 	 * Return a SSLSocketFactory for creating sockets to communicate with Apple.
+	 * Initializing a SSL context is expensive, so connections using the same keystore, password and TLS provider share the same factory.
 	 * 
 	 * @return SSLSocketFactory
 	 * @throws KeystoreException
 	 */
 	public SSLSocketFactory createSSLSocketFactory() throws KeystoreException {
-		return createSSLSocketFactoryWithTrustManagers(new TrustManager[] { new ServerTrustingTrustManager() });
+		SocketFactoryKey key = new SocketFactoryKey(getKeystore(), keystorePassword, server instanceof AppleServerBasicImpl ? ((AppleServerBasicImpl) server).getTLSProvider() : null);
+		synchronized (socketFactories) {
+			SSLSocketFactory factory = socketFactories.get(key);
+			if (factory != null) return factory;
+		}
+		SSLSocketFactory factory = createSSLSocketFactoryWithTrustManagers(new TrustManager[] { new ServerTrustingTrustManager() });
+		synchronized (socketFactories) {
+			socketFactories.put(key, factory);
+		}
+		return factory;
+	}
+
+
+	/**
+	 * Do everything needed to connect except connecting:  load the keystore, initialize the SSL context and resolve the server's addresses.
+	 * Invoking this method when an application starts saves that time on the first connection.
+	 * 
+	 * @throws KeystoreException thrown if an error occurs when loading the keystore or initializing the SSL context
+	 * @throws CommunicationException thrown if the server's address cannot be resolved
+	 */
+	public void prepare() throws KeystoreException, CommunicationException {
+		getSSLSocketFactory();
+		if (ProxyManager.isUsingProxy(server)) return;
+		try {
+			GatewayAddresses.getAddresses(getServerHost());
+		} catch (UnknownHostException e) {
+			throw new CommunicationException("Communication exception: " + e, e);
+		}
 	}
 
 
@@ -148,9 +300,9 @@ public abstract class ConnectionToAppleServer {
 
 		try {
 			if (ProxyManager.isUsingProxy(server)) {
-				return tunnelThroughProxy(socketFactory);
+				return connectThroughProxy(socketFactory);
 			} else {
-				return (SSLSocket) socketFactory.createSocket(getServerHost(), getServerPort());
+				return connectDirectly(socketFactory);
 			}
 		} catch (Exception e) {
 			throw new CommunicationException("Communication exception: " + e, e);
@@ -158,15 +310,103 @@ public abstract class ConnectionToAppleServer {
 	}
 
 
-	private SSLSocket tunnelThroughProxy(SSLSocketFactory socketFactory) throws UnknownHostException, IOException {
-		SSLSocket socket;
+	/**
+	 * Connect to one of the server's addresses, trying the next address if a connection fails or times out.
+	 * Other handshake failures (ex: a rejected certificate) would be the same on all addresses, so they are thrown right away.
+	 */
+	private SSLSocket connectDirectly(SSLSocketFactory socketFactory) throws IOException {
+		String host = getServerHost();
+		int port = getServerPort();
+		IOException failure = null;
+		for (InetAddress address : GatewayAddresses.getAddresses(host)) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(address, port), connectTimeout);
+			} catch (IOException e) {
+				close(socket);
+				GatewayAddresses.reportFailure(address);
+				logger.warn("Unable to connect to " + host + " at " + address.getHostAddress() + ":" + port + ": " + e);
+				failure = e;
+				continue;
+			}
+			try {
+				SSLSocket sslSocket = handshake((SSLSocket) socketFactory.createSocket(socket, host, port, true));
+				GatewayAddresses.reportSuccess(address);
+				return sslSocket;
+			} catch (SocketTimeoutException e) {
+				close(socket);
+				GatewayAddresses.reportFailure(address);
+				logger.warn("Handshake with " + host + " at " + address.getHostAddress() + ":" + port + " timed out");
+				failure = e;
+			} catch (IOException e) {
+				close(socket);
+				throw e;
+			}
+		}
+		throw failure;
+	}
+
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (Exception e) {
+		}
+	}
+
+
+	/**
+	 * Set the maximum time to wait for a connection to an Apple server to be established, and for its TLS handshake to complete.
+	 * When a server has several addresses, the next address is tried when this time elapses.
+	 * 
+	 * @param milliseconds a timeout in milliseconds (0 to wait indefinitely, default is 30 seconds)
+	 */
+	public static void setConnectTimeout(int milliseconds) {
+		connectTimeout = milliseconds;
+	}
 
-		// If a proxy was set, tunnel through the proxy to create the connection
-		String tunnelHost = ProxyManager.getProxyHost(server);
-		Integer tunnelPort = ProxyManager.getProxyPort(server);
 
-		Socket tunnel = new Socket(tunnelHost, tunnelPort);
-		doTunnelHandshake(tunnel, getServerHost(), getServerPort());
+	public static int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+
+	/**
+	 * Set how long the addresses of Apple servers are cached before being resolved again.
+	 * This is also how long an address that failed to connect is tried after the others.
+	 * 
+	 * @param milliseconds a duration in milliseconds (default is one minute)
+	 */
+	public static void setAddressCacheTTL(long milliseconds) {
+		addressCacheTTL = milliseconds;
+	}
+
+
+	public static long getAddressCacheTTL() {
+		return addressCacheTTL;
+	}
+
+
+	/**
+	 * Connect through a tunnel prepared ahead of time if one is available, or through a new tunnel otherwise.
+	 * A prepared tunnel may have been dropped by the proxy while it was idle, so a new tunnel is tried once if it fails.
+	 */
+	private SSLSocket connectThroughProxy(SSLSocketFactory socketFactory) throws IOException {
+		Socket prepared = ProxyTunnels.takePrepared(server, getServerHost(), getServerPort());
+		if (prepared != null) {
+			try {
+				return handshake(tunnelThroughProxy(socketFactory, prepared));
+			} catch (IOException e) {
+				close(prepared);
+				logger.debug("Prepared tunnel failed (" + e + "), opening a new tunnel");
+			}
+		}
+		return handshake(tunnelThroughProxy(socketFactory, ProxyTunnels.open(server, getServerHost(), getServerPort())));
+	}
+
+
+	private SSLSocket tunnelThroughProxy(SSLSocketFactory socketFactory, Socket tunnel) throws UnknownHostException, IOException {
+		SSLSocket socket;
 
 		/* overlay the tunnel socket with SSL */
 		socket = (SSLSocket) socketFactory.createSocket(tunnel, getServerHost(), getServerPort(), true);
@@ -185,62 +425,39 @@ public abstract class ConnectionToAppleServer {
 	}
 
 
-	private void doTunnelHandshake(Socket tunnel, String host, int port) throws IOException {
+	/**
+	 * Identifies a SSL socket factory:  the keystore instance it was initialized with, the keystore's password and the TLS provider.
+	 */
+	private static class SocketFactoryKey {
 
-		OutputStream out = tunnel.getOutputStream();
+		private final KeyStore keystore;
+		private final String password;
+		private final String provider;
 
-		String msg = "CONNECT " + host + ":" + port + " HTTP/1.0\n" + "User-Agent: BoardPad Server" + "\r\n\r\n";
-		byte b[] = null;
-		try { //We really do want ASCII7 -- the http protocol doesn't change with locale.
-			b = msg.getBytes("ASCII7");
-		} catch (UnsupportedEncodingException ignored) { //If ASCII7 isn't there, something serious is wrong, but Paranoia Is Good (tm)
-			b = msg.getBytes();
-		}
-		out.write(b);
-		out.flush();
 
-		// We need to store the reply so we can create a detailed error message to the user.
-		byte reply[] = new byte[200];
-		int replyLen = 0;
-		int newlinesSeen = 0;
-		boolean headerDone = false; //Done on first newline
+		SocketFactoryKey(KeyStore keystore, String password, String provider) {
+			this.keystore = keystore;
+			this.password = password;
+			this.provider = provider;
+		}
 
-		InputStream in = tunnel.getInputStream();
 
-		while (newlinesSeen < 2) {
-			int i = in.read();
-			if (i < 0) {
-				throw new IOException("Unexpected EOF from proxy");
-			}
-			if (i == '\n') {
-				headerDone = true;
-				++newlinesSeen;
-			} else if (i != '\r') {
-				newlinesSeen = 0;
-				if (!headerDone && replyLen < reply.length) {
-					reply[replyLen++] = (byte) i;
-				}
-			}
+		@Override
+		public int hashCode() {
+			int hash = System.identityHashCode(keystore);
+			hash = 31 * hash + (password != null ? password.hashCode() : 0);
+			return 31 * hash + (provider != null ? provider.hashCode() : 0);
 		}
 
-		/*
-		 * Converting the byte array to a string is slightly wasteful
-		 * in the case where the connection was successful, but it's
-		 * insignificant compared to the network overhead.
-		 */
-		String replyStr;
-		try {
-			replyStr = new String(reply, 0, replyLen, "ASCII7");
-		} catch (UnsupportedEncodingException ignored) {
-			replyStr = new String(reply, 0, replyLen);
-		}
 
-		/* We check for Connection Established because our proxy returns HTTP/1.1 instead of 1.0 */
-		if (replyStr.toLowerCase().indexOf("200 connection established") == -1) {
-			throw new IOException("Unable to tunnel through. Proxy returns \"" + replyStr + "\"");
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof SocketFactoryKey)) return false;
+			SocketFactoryKey other = (SocketFactoryKey) object;
+			if (keystore != other.keystore) return false;
+			if (password == null ? other.password != null : !password.equals(other.password)) return false;
+			return provider == null ? other.provider == null : provider.equals(other.provider);
 		}
-
-		/* tunneling Handshake was successful! */
 	}
 
 }
@@ -0,0 +1,100 @@
+package javapns.communication;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Resolves all addresses of Apple's gateways and decides which address each new connection should try first.
+ * 
+ * <p>Resolved addresses are cached for a limited time.  Successive connections to the same host start with successive addresses,
+ * so that connections are spread across all addresses instead of piling onto one.  Addresses that recently failed to connect
+ * are tried last, until they connect again or their failure is old enough to be forgotten.</p>
+ */
+class GatewayAddresses {
+
+	/* Resolved addresses, by host name */
+	private static final ConcurrentMap<String, Resolution> resolutions = new ConcurrentHashMap<String, Resolution>();
+
+	/* Time of the last connection failure, by address */
+	private static final ConcurrentMap<InetAddress, Long> failures = new ConcurrentHashMap<InetAddress, Long>();
+
+
+	private GatewayAddresses() {
+	}
+
+
+	/**
+	 * Get the addresses of a host, in the order a new connection should try them.
+	 * 
+	 * @param host a host name
+	 * @return all addresses of the host
+	 * @throws UnknownHostException thrown if the host cannot be resolved and no previous resolution is available
+	 */
+	static List<InetAddress> getAddresses(String host) throws UnknownHostException {
+		long now = System.currentTimeMillis();
+		Resolution resolution = resolutions.get(host);
+		if (resolution == null || now >= resolution.expires) {
+			try {
+				resolution = new Resolution(InetAddress.getAllByName(host), now + ConnectionToAppleServer.getAddressCacheTTL());
+				resolutions.put(host, resolution);
+			} catch (UnknownHostException e) {
+				/* Keep using the addresses we had rather than failing all connections during a resolver outage */
+				if (resolution == null) throw e;
+			}
+		}
+
+		InetAddress[] addresses = resolution.addresses;
+		int start = (resolution.next.getAndIncrement() & Integer.MAX_VALUE) % addresses.length;
+		List<InetAddress> ordered = new ArrayList<InetAddress>(addresses.length);
+		List<InetAddress> failed = null;
+		long failureTimeout = ConnectionToAppleServer.getAddressCacheTTL();
+		for (int i = 0; i < addresses.length; i++) {
+			InetAddress address = addresses[(start + i) % addresses.length];
+			Long failure = failures.get(address);
+			if (failure != null && now - failure < failureTimeout) {
+				if (failed == null) failed = new ArrayList<InetAddress>();
+				failed.add(address);
+			} else {
+				ordered.add(address);
+			}
+		}
+		if (failed != null) ordered.addAll(failed);
+		return ordered;
+	}
+
+
+	static void reportFailure(InetAddress address) {
+		failures.put(address, System.currentTimeMillis());
+	}
+
+
+	static void reportSuccess(InetAddress address) {
+		if (!failures.isEmpty()) failures.remove(address);
+	}
+
+
+	static void clear() {
+		resolutions.clear();
+		failures.clear();
+	}
+
+
+	/**
+	 * The addresses of a host, valid until a specific time.
+	 */
+	private static class Resolution {
+
+		private final InetAddress[] addresses;
+		private final long expires;
+		private final AtomicInteger next = new AtomicInteger();
+
+
+		Resolution(InetAddress[] addresses, long expires) {
+			this.addresses = addresses;
+			this.expires = expires;
+		}
+	}
+
+}
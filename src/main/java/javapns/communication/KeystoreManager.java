@@ -5,18 +5,35 @@ import java.security.*;
 import java.security.cert.*;
 import java.security.cert.Certificate;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javapns.communication.exceptions.*;
 
 /**
  * Class responsible for dealing with keystores.
  * 
+ * <p>Decrypting a keystore is expensive, so keystores provided as files, paths, byte arrays or streams are loaded once per process
+ * and cached by content digest, keystore type and password.  Files are only read again when their size or modification time changes,
+ * in which case keystores loaded from their previous content are evicted.  Threads asking for a keystore being loaded wait for it
+ * instead of loading it again.</p>
+ * 
+ * <p>Cached keystores are shared by all connections using them, and must not be modified.</p>
+ * 
  * @author Sylvain Pedneault
  */
 public class KeystoreManager {
 
 	private static final String REVIEW_MESSAGE = " Please review the procedure for generating a keystore for JavaPNS.";
 
+	/* Algorithm used to identify keystore contents and passwords */
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/* Keystores loaded (or being loaded), by content, type and password */
+	private static final ConcurrentMap<CacheKey, FutureTask<KeyStore>> keystores = new ConcurrentHashMap<CacheKey, FutureTask<KeyStore>>();
+
+	/* Content digests of keystore files, by absolute path */
+	private static final ConcurrentMap<String, FileDigest> fileDigests = new ConcurrentHashMap<String, FileDigest>();
+
 
 	/**
 	 * Loads a keystore.
@@ -26,6 +43,11 @@ public class KeystoreManager {
 	 * @throws KeystoreException
 	 */
 	static KeyStore loadKeystore(AppleServer server) throws KeystoreException {
+		/* Use the original reference if possible, so that files are not read again unless they changed */
+		if (server instanceof AppleServerBasicImpl) {
+			AppleServerBasicImpl.Credentials credentials = ((AppleServerBasicImpl) server).getCredentials();
+			return loadKeystore(server, credentials.keystore, credentials.password);
+		}
 		return loadKeystore(server, server.getKeystoreStream());
 	}
 
@@ -53,30 +75,154 @@ public class KeystoreManager {
 	 * @throws KeystoreException
 	 */
 	public static KeyStore loadKeystore(AppleServer server, Object keystore, boolean verifyKeystore) throws KeystoreException {
+		return loadKeystore(server, keystore, server.getKeystorePassword());
+	}
+
+
+	/**
+	 * Loads a keystore with a specific password, which may differ from the server's current password while a keystore is being replaced.
+	 * 
+	 * @param server the server the keystore is intended for
+	 * @param keystore a keystore containing your private key and the certificate signed by Apple (File, InputStream, byte[], KeyStore or String for a file path)
+	 * @param keystorePassword the keystore's password
+	 * @return a loaded keystore
+	 * @throws KeystoreException
+	 */
+	static KeyStore loadKeystore(AppleServer server, Object keystore, String keystorePassword) throws KeystoreException {
 		if (keystore instanceof KeyStore) return (KeyStore) keystore;
-		synchronized (server) {
-			InputStream keystoreStream = streamKeystore(keystore);
-			if (keystoreStream instanceof WrappedKeystore) return ((WrappedKeystore) keystoreStream).getKeystore();
-			KeyStore keyStore;
-			try {
-				keyStore = KeyStore.getInstance(server.getKeystoreType());
-				char[] password = KeystoreManager.getKeystorePasswordForSSL(server);
-				keyStore.load(keystoreStream, password);
-			} catch (Exception e) {
-				throw wrapKeystoreException(e);
-			} finally {
-				try {
-					keystoreStream.close();
-				} catch (Exception e) {
+		if (keystore instanceof WrappedKeystore) return ((WrappedKeystore) keystore).getKeystore();
+		validateKeystoreParameter(keystore);
+
+		final Object source;
+		byte[] digest;
+		if (keystore instanceof InputStream) {
+			byte[] content;
+			synchronized (server) {
+				content = readKeystore((InputStream) keystore);
+			}
+			source = content;
+			digest = digest(content);
+		} else if (keystore instanceof byte[]) {
+			source = keystore;
+			digest = digest((byte[]) keystore);
+		} else {
+			File file = keystore instanceof File ? (File) keystore : new File((String) keystore);
+			source = file;
+			digest = digestFile(file);
+		}
+
+		final String type = server.getKeystoreType();
+		final char[] password = getKeystorePasswordForSSL(keystorePassword);
+		CacheKey key = new CacheKey(digest, type, digest(new String(password).getBytes()));
+		FutureTask<KeyStore> task = keystores.get(key);
+		if (task == null) {
+			FutureTask<KeyStore> newTask = new FutureTask<KeyStore>(new Callable<KeyStore>() {
+
+				public KeyStore call() throws Exception {
+					return loadKeystore(streamKeystore(source), type, password);
 				}
+			});
+			task = keystores.putIfAbsent(key, newTask);
+			if (task == null) {
+				task = newTask;
+				task.run();
 			}
+		}
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			/* Do not cache failures, so that the keystore is loaded again next time */
+			keystores.remove(key, task);
+			Throwable cause = e.getCause();
+			if (cause instanceof KeystoreException) throw (KeystoreException) cause;
+			throw wrapKeystoreException(cause instanceof Exception ? (Exception) cause : e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KeystoreException("Interrupted while waiting for keystore to be loaded", e);
+		}
+	}
+
+
+	private static KeyStore loadKeystore(InputStream keystoreStream, String type, char[] password) throws KeystoreException {
+		try {
+			KeyStore keyStore = KeyStore.getInstance(type);
+			keyStore.load(keystoreStream, password);
 			return keyStore;
+		} catch (Exception e) {
+			throw wrapKeystoreException(e);
+		} finally {
+			try {
+				keystoreStream.close();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+
+	/**
+	 * Forget all keystores loaded so far, so that they are loaded again the next time they are needed.
+	 * This is only required if a keystore file is replaced by one of the same size within the same second.
+	 */
+	public static void clearKeystoreCache() {
+		keystores.clear();
+		fileDigests.clear();
+	}
+
+
+	/**
+	 * Get the digest of a keystore file, reading the file only if it changed since its digest was last computed.
+	 * Keystores loaded from a previous version of the file are evicted from the cache.
+	 */
+	private static byte[] digestFile(File file) throws KeystoreException {
+		String path = file.getAbsolutePath();
+		long lastModified = file.lastModified();
+		long length = file.length();
+		FileDigest cached = fileDigests.get(path);
+		if (cached != null && cached.lastModified == lastModified && cached.length == length) return cached.digest;
+
+		byte[] digest = digest(readKeystore(streamKeystore(file)));
+		fileDigests.put(path, new FileDigest(lastModified, length, digest));
+		if (cached != null && !Arrays.equals(cached.digest, digest)) {
+			for (Iterator<CacheKey> keys = keystores.keySet().iterator(); keys.hasNext();) {
+				if (Arrays.equals(keys.next().digest, cached.digest)) keys.remove();
+			}
+		}
+		return digest;
+	}
+
+
+	private static byte[] readKeystore(InputStream keystoreStream) throws KeystoreException {
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = keystoreStream.read(buffer)) != -1) {
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		} catch (IOException e) {
+			throw new KeystoreException("Keystore exception: " + e.getMessage(), e);
+		} finally {
+			try {
+				keystoreStream.close();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+
+	private static byte[] digest(byte[] bytes) throws KeystoreException {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new KeystoreException("Keystore exception: " + e.getMessage(), e);
 		}
 	}
 
 
 	/**
 	 * Make sure that the provided keystore will be reusable.
+	 * Streams are loaded right away, while files and byte arrays are kept as is and loaded (once) when first needed.
 	 * 
 	 * @param server the server the keystore is intended for
 	 * @param keystore a keystore containing your private key and the certificate signed by Apple (File, InputStream, byte[], KeyStore or String for a file path)
@@ -84,7 +230,12 @@ public class KeystoreManager {
 	 * @throws KeystoreException
 	 */
 	static Object ensureReusableKeystore(AppleServer server, Object keystore) throws KeystoreException {
-		if (keystore instanceof InputStream) keystore = loadKeystore(server, keystore, false);
+		return ensureReusableKeystore(server, keystore, server.getKeystorePassword());
+	}
+
+
+	static Object ensureReusableKeystore(AppleServer server, Object keystore, String keystorePassword) throws KeystoreException {
+		if (keystore instanceof InputStream) keystore = loadKeystore(server, keystore, keystorePassword);
 		return keystore;
 	}
 
@@ -154,7 +305,11 @@ public class KeystoreManager {
 
 
 	static char[] getKeystorePasswordForSSL(AppleServer server) {
-		String password = server.getKeystorePassword();
+		return getKeystorePasswordForSSL(server.getKeystorePassword());
+	}
+
+
+	static char[] getKeystorePasswordForSSL(String password) {
 		if (password == null) password = "";
 		//		if (password != null && password.length() == 0) password = null;
 		char[] passchars = password != null ? password.toCharArray() : null;
@@ -229,4 +384,60 @@ public class KeystoreManager {
 		throw new InvalidKeystoreReferenceException(keystore);
 	}
 
+
+	/**
+	 * Identifies a loaded keystore:  digest of its content, type, and digest of its password.
+	 */
+	private static class CacheKey {
+
+		private final byte[] digest;
+		private final String type;
+		private final byte[] passwordDigest;
+		private final int hash;
+
+
+		CacheKey(byte[] digest, String type, byte[] passwordDigest) {
+			this.digest = digest;
+			this.type = type;
+			this.passwordDigest = passwordDigest;
+			int h = Arrays.hashCode(digest);
+			h = 31 * h + (type != null ? type.hashCode() : 0);
+			this.hash = 31 * h + Arrays.hashCode(passwordDigest);
+		}
+
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+
+		@Override
+		public boolean equals(Object object) {
+			if (this == object) return true;
+			if (!(object instanceof CacheKey)) return false;
+			CacheKey other = (CacheKey) object;
+			if (type == null ? other.type != null : !type.equals(other.type)) return false;
+			return Arrays.equals(digest, other.digest) && Arrays.equals(passwordDigest, other.passwordDigest);
+		}
+	}
+
+
+	/**
+	 * The digest of a keystore file, valid as long as the file's size and modification time do not change.
+	 */
+	private static class FileDigest {
+
+		private final long lastModified;
+		private final long length;
+		private final byte[] digest;
+
+
+		FileDigest(long lastModified, long length, byte[] digest) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.digest = digest;
+		}
+	}
+
 }
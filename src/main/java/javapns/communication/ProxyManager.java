@@ -1,8 +1,14 @@
 package javapns.communication;
 
+import java.io.*;
+import java.util.concurrent.*;
+
 /**
  * Main class for dealing with proxies.
  * 
+ * <p>Connections go through proxies using HTTP tunnels (CONNECT method).  Tunnels can be opened ahead of time with
+ * {@link #prepareTunnels(AppleServer, String, int, int)}, so that many connections starting together do not each wait for their own tunnel.</p>
+ * 
  * @author Sylvain Pedneault
  */
 public class ProxyManager {
@@ -13,6 +19,14 @@ public class ProxyManager {
 	private static final String JVM_PROXY_HOST_PROPERTY = "https.proxyHost";
 	private static final String JVM_PROXY_PORT_PROPERTY = "https.proxyPort";
 
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	/* Proxy-Authorization header values, by proxy host and port */
+	private static final ConcurrentMap<String, String> proxyAuthorizations = new ConcurrentHashMap<String, String>();
+	private static volatile int connectTimeout = 30000;
+	private static volatile int readTimeout = 30000;
+	private static volatile long tunnelIdleTimeout = 30000;
+
 
 	private ProxyManager() {
 	}
@@ -107,4 +121,133 @@ public class ProxyManager {
 		return proxyConfigured;
 	}
 
+
+	/**
+	 * Configure credentials to send to a specific proxy requiring authentication (Basic scheme).
+	 * Credentials are only sent to the proxy they were configured for, whether that proxy is configured
+	 * for a specific server, for the entire library or for the JVM.
+	 * 
+	 * @param proxyHost the proxy host, as configured
+	 * @param proxyPort the proxy port
+	 * @param username the proxy username, or null to disable authentication with this proxy
+	 * @param password the proxy password
+	 */
+	public static void setProxyAuthentication(String proxyHost, int proxyPort, String username, String password) {
+		String key = proxyHost + ":" + proxyPort;
+		if (username == null) {
+			proxyAuthorizations.remove(key);
+			return;
+		}
+		String credentials = username + ":" + (password != null ? password : "");
+		try {
+			proxyAuthorizations.put(key, "Basic " + encodeBase64(credentials.getBytes("ISO-8859-1")));
+		} catch (UnsupportedEncodingException e) {
+			proxyAuthorizations.put(key, "Basic " + encodeBase64(credentials.getBytes()));
+		}
+	}
+
+
+	static String getProxyAuthorization(String proxyHost, int proxyPort) {
+		return proxyAuthorizations.get(proxyHost + ":" + proxyPort);
+	}
+
+
+	/**
+	 * Set the maximum time to wait for a connection to a proxy to be established.
+	 * 
+	 * @param milliseconds a timeout in milliseconds (0 to wait indefinitely, default is 30 seconds)
+	 */
+	public static void setConnectTimeout(int milliseconds) {
+		connectTimeout = milliseconds;
+	}
+
+
+	public static int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+
+	/**
+	 * Set the maximum time to wait for a proxy to reply to a tunnel request.
+	 * 
+	 * @param milliseconds a timeout in milliseconds (0 to wait indefinitely, default is 30 seconds)
+	 */
+	public static void setReadTimeout(int milliseconds) {
+		readTimeout = milliseconds;
+	}
+
+
+	public static int getReadTimeout() {
+		return readTimeout;
+	}
+
+
+	/**
+	 * Set the maximum time a tunnel opened ahead of time is kept unused before being closed.
+	 * Proxies typically close idle tunnels after a while, so this should be shorter than the proxy's own timeout.
+	 * 
+	 * @param milliseconds a timeout in milliseconds (default is 30 seconds)
+	 */
+	public static void setTunnelIdleTimeout(long milliseconds) {
+		tunnelIdleTimeout = milliseconds;
+	}
+
+
+	public static long getTunnelIdleTimeout() {
+		return tunnelIdleTimeout;
+	}
+
+
+	/**
+	 * Open tunnels through the proxy configured for a server in the background, in parallel.
+	 * Connections to the same destination then use these tunnels instead of opening their own,
+	 * and each tunnel used is replaced in the background.  Does nothing if no proxy is configured.
+	 * 
+	 * @param server a server whose proxy settings apply
+	 * @param host the destination host
+	 * @param port the destination port
+	 * @param count the number of tunnels to open (typically the number of connections about to be opened)
+	 */
+	public static void prepareTunnels(AppleServer server, String host, int port, int count) {
+		if (!isUsingProxy(server)) return;
+		ProxyTunnels.prepare(getProxyHost(server), getProxyPort(server), host, port, count);
+	}
+
+
+	/**
+	 * Close all tunnels opened ahead of time which are still unused.
+	 */
+	public static void closeIdleTunnels() {
+		ProxyTunnels.closeIdleTunnels();
+	}
+
+
+	/**
+	 * Close the tunnels opened ahead of time to a destination through the proxy configured for a server which are still unused.
+	 * Does nothing if no proxy is configured.
+	 * 
+	 * @param server a server whose proxy settings apply
+	 * @param host the destination host
+	 * @param port the destination port
+	 */
+	public static void closeIdleTunnels(AppleServer server, String host, int port) {
+		if (!isUsingProxy(server)) return;
+		ProxyTunnels.closeIdleTunnels(getProxyHost(server), getProxyPort(server), host, port);
+	}
+
+
+	private static String encodeBase64(byte[] bytes) {
+		StringBuilder encoded = new StringBuilder((bytes.length + 2) / 3 * 4);
+		for (int i = 0; i < bytes.length; i += 3) {
+			int b0 = bytes[i] & 0xff;
+			int b1 = i + 1 < bytes.length ? bytes[i + 1] & 0xff : 0;
+			int b2 = i + 2 < bytes.length ? bytes[i + 2] & 0xff : 0;
+			encoded.append(BASE64[b0 >> 2]);
+			encoded.append(BASE64[((b0 & 0x03) << 4) | (b1 >> 4)]);
+			encoded.append(i + 1 < bytes.length ? BASE64[((b1 & 0x0f) << 2) | (b2 >> 6)] : '=');
+			encoded.append(i + 2 < bytes.length ? BASE64[b2 & 0x3f] : '=');
+		}
+		return encoded.toString();
+	}
+
 }
@@ -0,0 +1,255 @@
+package javapns.communication;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.apache.log4j.*;
+
+/**
+ * Opens tunnels through HTTP proxies using the CONNECT method.
+ * 
+ * <p>Tunnels can be opened ahead of time and in parallel (see {@link ProxyManager#prepareTunnels(AppleServer, String, int, int)}),
+ * in which case they are kept until a connection needs one or until they have been idle for too long, at which point a
+ * background timer closes them.  Each time a connection takes a prepared tunnel, another one is opened in the background
+ * to replace it.</p>
+ */
+class ProxyTunnels {
+
+	private static final Logger logger = Logger.getLogger(ProxyTunnels.class);
+
+	/* Maximum size of a proxy's reply headers */
+	private static final int MAXIMUM_REPLY_SIZE = 8192;
+
+	private static final String USER_AGENT = "BoardPad Server";
+
+	/* Tunnels opened ahead of time, by proxy and destination */
+	private static final ConcurrentMap<String, BlockingQueue<IdleTunnel>> idleTunnels = new ConcurrentHashMap<String, BlockingQueue<IdleTunnel>>();
+
+	private static final ThreadFactory threadFactory = new ThreadFactory() {
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "javapns proxy tunnel");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	private static final ExecutorService executor = Executors.newCachedThreadPool(threadFactory);
+
+	/* Closes prepared tunnels which were not taken before the idle timeout */
+	private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+
+	private ProxyTunnels() {
+	}
+
+
+	/**
+	 * Take a tunnel to a destination prepared ahead of time through the proxy configured for a server, if one is available.
+	 * A tunnel may have been closed by the proxy while it was idle without this being detectable,
+	 * so callers should open a new tunnel with {@link #open(AppleServer, String, int)} if a prepared one fails.
+	 * 
+	 * @param server the server whose proxy settings apply
+	 * @param host the destination host
+	 * @param port the destination port
+	 * @return a socket connected to the destination through the proxy, or null if no prepared tunnel is available
+	 */
+	static Socket takePrepared(AppleServer server, String host, int port) {
+		String proxyHost = ProxyManager.getProxyHost(server);
+		int proxyPort = ProxyManager.getProxyPort(server);
+		BlockingQueue<IdleTunnel> queue = idleTunnels.get(key(proxyHost, proxyPort, host, port));
+		if (queue == null) return null;
+		long now = System.currentTimeMillis();
+		IdleTunnel idle;
+		while ((idle = queue.poll()) != null) {
+			if (idle.isUsable(now)) {
+				prepare(proxyHost, proxyPort, host, port, 1);
+				return idle.socket;
+			}
+			close(idle.socket);
+		}
+		return null;
+	}
+
+
+	/**
+	 * Open a new tunnel to a destination through the proxy configured for a server.
+	 * 
+	 * @param server the server whose proxy settings apply
+	 * @param host the destination host
+	 * @param port the destination port
+	 * @return a socket connected to the destination through the proxy
+	 * @throws IOException thrown if the proxy cannot be reached or refuses to open the tunnel
+	 */
+	static Socket open(AppleServer server, String host, int port) throws IOException {
+		return connect(ProxyManager.getProxyHost(server), ProxyManager.getProxyPort(server), host, port);
+	}
+
+
+	/**
+	 * Open tunnels in the background, in parallel.
+	 */
+	static void prepare(final String proxyHost, final int proxyPort, final String host, final int port, int count) {
+		String key = key(proxyHost, proxyPort, host, port);
+		BlockingQueue<IdleTunnel> queue = idleTunnels.get(key);
+		if (queue == null) {
+			BlockingQueue<IdleTunnel> newQueue = new LinkedBlockingQueue<IdleTunnel>();
+			queue = idleTunnels.putIfAbsent(key, newQueue);
+			if (queue == null) queue = newQueue;
+		}
+		final BlockingQueue<IdleTunnel> target = queue;
+		for (int i = 0; i < count; i++) {
+			executor.execute(new Runnable() {
+
+				public void run() {
+					try {
+						final IdleTunnel idle = new IdleTunnel(connect(proxyHost, proxyPort, host, port));
+						target.offer(idle);
+						evictor.schedule(new Runnable() {
+
+							public void run() {
+								if (target.remove(idle)) close(idle.socket);
+							}
+						}, ProxyManager.getTunnelIdleTimeout(), TimeUnit.MILLISECONDS);
+					} catch (IOException e) {
+						logger.warn("Unable to prepare tunnel through proxy " + proxyHost + ":" + proxyPort + ": " + e.getMessage());
+					}
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * Close all tunnels prepared ahead of time.
+	 */
+	static void closeIdleTunnels() {
+		for (BlockingQueue<IdleTunnel> queue : idleTunnels.values())
+			close(queue);
+	}
+
+
+	/**
+	 * Close the tunnels prepared ahead of time to a destination through a given proxy.
+	 */
+	static void closeIdleTunnels(String proxyHost, int proxyPort, String host, int port) {
+		BlockingQueue<IdleTunnel> queue = idleTunnels.get(key(proxyHost, proxyPort, host, port));
+		if (queue != null) close(queue);
+	}
+
+
+	private static void close(BlockingQueue<IdleTunnel> queue) {
+		IdleTunnel idle;
+		while ((idle = queue.poll()) != null)
+			close(idle.socket);
+	}
+
+
+	/**
+	 * Open a new tunnel.
+	 */
+	static Socket connect(String proxyHost, int proxyPort, String host, int port) throws IOException {
+		Socket tunnel = new Socket();
+		try {
+			tunnel.connect(new InetSocketAddress(proxyHost, proxyPort), ProxyManager.getConnectTimeout());
+			tunnel.setSoTimeout(ProxyManager.getReadTimeout());
+			doTunnelHandshake(tunnel, ProxyManager.getProxyAuthorization(proxyHost, proxyPort), host, port);
+			tunnel.setSoTimeout(0);
+			return tunnel;
+		} catch (IOException e) {
+			close(tunnel);
+			throw e;
+		}
+	}
+
+
+	private static void doTunnelHandshake(Socket tunnel, String authorization, String host, int port) throws IOException {
+		StringBuilder request = new StringBuilder();
+		request.append("CONNECT ").append(host).append(':').append(port).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(host).append(':').append(port).append("\r\n");
+		request.append("User-Agent: ").append(USER_AGENT).append("\r\n");
+		if (authorization != null) request.append("Proxy-Authorization: ").append(authorization).append("\r\n");
+		request.append("\r\n");
+
+		/* The HTTP protocol does not change with locale */
+		OutputStream out = tunnel.getOutputStream();
+		out.write(request.toString().getBytes("ISO-8859-1"));
+		out.flush();
+
+		/* Read the reply by blocks until the end of its headers.  The server does not send anything before the TLS client hello. */
+		InputStream in = tunnel.getInputStream();
+		byte[] reply = new byte[MAXIMUM_REPLY_SIZE];
+		int replyLen = 0;
+		int headerEnd = -1;
+		while (headerEnd < 0) {
+			if (replyLen == reply.length) throw new IOException("Proxy reply is too long");
+			int read = in.read(reply, replyLen, reply.length - replyLen);
+			if (read < 0) throw new IOException("Unexpected EOF from proxy");
+			headerEnd = findHeaderEnd(reply, Math.max(0, replyLen - 3), replyLen + read);
+			replyLen += read;
+		}
+		if (headerEnd != replyLen) throw new IOException("Unexpected data from proxy after its reply");
+
+		int lineEnd = 0;
+		while (lineEnd < replyLen && reply[lineEnd] != '\r' && reply[lineEnd] != '\n')
+			lineEnd++;
+		String statusLine = new String(reply, 0, lineEnd, "ISO-8859-1");
+
+		/* Any HTTP version is fine, as long as the status is 200 */
+		String[] status = statusLine.split(" ", 3);
+		if (status.length < 2 || !status[0].startsWith("HTTP/") || !status[1].equals("200")) {
+			if (status.length >= 2 && status[1].equals("407")) throw new IOException("Proxy authentication required. Proxy returns \"" + statusLine + "\"");
+			throw new IOException("Unable to tunnel through. Proxy returns \"" + statusLine + "\"");
+		}
+	}
+
+
+	/**
+	 * Find the end of the headers (an empty line) in a reply.
+	 * 
+	 * @return the index following the empty line, or -1 if the headers are not complete
+	 */
+	private static int findHeaderEnd(byte[] reply, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (reply[i] != '\n') continue;
+			if (i + 1 < to && reply[i + 1] == '\n') return i + 2;
+			if (i + 2 < to && reply[i + 1] == '\r' && reply[i + 2] == '\n') return i + 3;
+		}
+		return -1;
+	}
+
+
+	private static String key(String proxyHost, int proxyPort, String host, int port) {
+		return proxyHost + ":" + proxyPort + ">" + host + ":" + port;
+	}
+
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (Exception e) {
+		}
+	}
+
+
+	/**
+	 * A tunnel opened ahead of time.
+	 */
+	private static class IdleTunnel {
+
+		private final Socket socket;
+		private final long opened = System.currentTimeMillis();
+
+
+		IdleTunnel(Socket socket) {
+			this.socket = socket;
+		}
+
+
+		boolean isUsable(long now) {
+			return now - opened < ProxyManager.getTunnelIdleTimeout() && socket.isConnected() && !socket.isClosed() && !socket.isInputShutdown();
+		}
+	}
+
+}
@@ -0,0 +1,214 @@
+package javapns.notification;
+
+import java.util.*;
+
+import org.json.*;
+
+/**
+ * Writes strings as JSON string contents, directly in UTF-8.
+ * 
+ * The escaping rules are the same as JSONObject.quote(String), so that a value rendered
+ * by this class is byte-for-byte identical to the same value serialized by a JSONObject.
+ * Unpaired surrogates are replaced by '?', as String.getBytes("UTF-8") does.
+ */
+class JSONEscaper {
+
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+
+	private JSONEscaper() {
+	}
+
+
+	/**
+	 * Compute the number of bytes that a string will occupy once escaped and encoded in UTF-8 (without surrounding quotes).
+	 * 
+	 * @param string the string to escape
+	 * @param previous the character preceding the string in the JSON string literal, or 0 if none
+	 * @return a number of bytes
+	 */
+	static int escapedLength(String string, char previous) {
+		int length = 0;
+		char b;
+		char c = previous;
+		int len = string.length();
+		for (int i = 0; i < len; i++) {
+			b = c;
+			c = string.charAt(i);
+			if (isSurrogatePair(string, i)) {
+				length += 4;
+				c = string.charAt(++i);
+			} else {
+				length += escapedLength(c, b);
+			}
+		}
+		return length;
+	}
+
+
+	/**
+	 * Find the longest prefix of a string which fits in a given number of bytes once escaped and encoded in UTF-8.
+	 * The prefix never ends in the middle of a surrogate pair.
+	 * 
+	 * @param string the string to truncate
+	 * @param previous the character preceding the string in the JSON string literal, or 0 if none
+	 * @param maximumLength the maximum number of bytes
+	 * @return the length of the prefix, in characters
+	 */
+	static int truncationIndex(String string, char previous, int maximumLength) {
+		int length = 0;
+		char b;
+		char c = previous;
+		int len = string.length();
+		int i = 0;
+		while (i < len) {
+			b = c;
+			c = string.charAt(i);
+			boolean pair = isSurrogatePair(string, i);
+			length += pair ? 4 : escapedLength(c, b);
+			if (length > maximumLength) return i;
+			if (pair) c = string.charAt(++i);
+			i++;
+		}
+		return len;
+	}
+
+
+	/**
+	 * Compute the number of bytes a single character (not part of a surrogate pair) occupies once escaped and encoded in UTF-8.
+	 */
+	private static int escapedLength(char c, char previous) {
+		switch (c) {
+			case '\\':
+			case '"':
+			case '\b':
+			case '\t':
+			case '\n':
+			case '\f':
+			case '\r':
+				return 2;
+			case '/':
+				return previous == '<' ? 2 : 1;
+			default:
+				if (isUnicodeEscaped(c)) return 6;
+				if (c < 0x80) return 1;
+				if (c < 0x800) return 2;
+				if (isSurrogate(c)) return 1;
+				return 3;
+		}
+	}
+
+
+	private static boolean isSurrogatePair(String string, int index) {
+		return Character.isHighSurrogate(string.charAt(index)) && index + 1 < string.length() && Character.isLowSurrogate(string.charAt(index + 1));
+	}
+
+
+	/**
+	 * Write a string escaped and encoded in UTF-8 (without surrounding quotes).
+	 * The buffer must have room for at least escapedLength(string, previous) bytes after the offset.
+	 * 
+	 * @param string the string to escape
+	 * @param previous the character preceding the string in the JSON string literal, or 0 if none
+	 * @param out the buffer to write to
+	 * @param offset the position at which to start writing
+	 * @return the position following the last byte written
+	 */
+	static int writeEscaped(String string, char previous, byte[] out, int offset) {
+		int pos = offset;
+		char b;
+		char c = previous;
+		int len = string.length();
+		for (int i = 0; i < len; i++) {
+			b = c;
+			c = string.charAt(i);
+			switch (c) {
+				case '\\':
+				case '"':
+					out[pos++] = '\\';
+					out[pos++] = (byte) c;
+					break;
+				case '/':
+					if (b == '<') out[pos++] = '\\';
+					out[pos++] = '/';
+					break;
+				case '\b':
+					out[pos++] = '\\';
+					out[pos++] = 'b';
+					break;
+				case '\t':
+					out[pos++] = '\\';
+					out[pos++] = 't';
+					break;
+				case '\n':
+					out[pos++] = '\\';
+					out[pos++] = 'n';
+					break;
+				case '\f':
+					out[pos++] = '\\';
+					out[pos++] = 'f';
+					break;
+				case '\r':
+					out[pos++] = '\\';
+					out[pos++] = 'r';
+					break;
+				default:
+					if (isUnicodeEscaped(c)) {
+						out[pos++] = '\\';
+						out[pos++] = 'u';
+						out[pos++] = HEX[(c >> 12) & 0xF];
+						out[pos++] = HEX[(c >> 8) & 0xF];
+						out[pos++] = HEX[(c >> 4) & 0xF];
+						out[pos++] = HEX[c & 0xF];
+					} else if (c < 0x80) {
+						out[pos++] = (byte) c;
+					} else if (c < 0x800) {
+						out[pos++] = (byte) (0xC0 | (c >> 6));
+						out[pos++] = (byte) (0x80 | (c & 0x3F));
+					} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(string.charAt(i + 1))) {
+						c = string.charAt(++i);
+						int codePoint = Character.toCodePoint(string.charAt(i - 1), c);
+						out[pos++] = (byte) (0xF0 | (codePoint >> 18));
+						out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+						out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+						out[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+					} else if (isSurrogate(c)) {
+						out[pos++] = '?';
+					} else {
+						out[pos++] = (byte) (0xE0 | (c >> 12));
+						out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+						out[pos++] = (byte) (0x80 | (c & 0x3F));
+					}
+			}
+		}
+		return pos;
+	}
+
+
+	/**
+	 * Serialize a value exactly as a JSONObject would.
+	 * 
+	 * @param value a value (string, number, boolean, null, list, map, etc.)
+	 * @return the value's JSON text
+	 * @throws JSONException thrown if the value cannot be serialized (ex: an infinite number)
+	 */
+	static String valueToString(Object value) throws JSONException {
+		if (value == null) return "null";
+		if (value instanceof Number) return JSONObject.numberToString((Number) value);
+		if (value instanceof Boolean) return value.toString();
+		/* Let a JSONArray serialize anything else exactly as a JSONObject would, then strip the brackets */
+		String array = new JSONArray(Collections.singletonList(value)).toString();
+		return array.substring(1, array.length() - 1);
+	}
+
+
+	private static boolean isSurrogate(char c) {
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+	}
+
+
+	private static boolean isUnicodeEscaped(char c) {
+		return c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100');
+	}
+
+}
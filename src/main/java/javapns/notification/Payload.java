@@ -4,6 +4,7 @@ import javapns.notification.exceptions.PayloadMaxSizeExceededException;
 import javapns.notification.exceptions.PayloadMaxSizeProbablyExceededException;
 import org.apache.log4j.Logger;
 import org.json.JSONException;
+import org.json.JSONNull;
 import org.json.JSONObject;
 
 import java.util.List;
@@ -38,6 +39,12 @@ public abstract class Payload {
 
 	private int preSendConfiguration = 0;
 
+	/* Exact number of bytes of the encoded payload, maintained as properties are put or removed (-1 if unknown) */
+	private int encodedSize = -1;
+
+	/* False once a value that can be modified outside of this payload (ex: a list) was added, or the JSON tree was handed out */
+	private boolean sizeTrackable = true;
+
 
 	/**
 	 * Construct a Payload object with a blank root JSONObject
@@ -59,11 +66,36 @@ public abstract class Payload {
 	}
 
 
+	/**
+	 * Construct a Payload object backed by an existing JSONObject (or by nothing at all, for subclasses providing their own bytes).
+	 * @param payload the root JSONObject
+	 */
+	Payload(JSONObject payload) {
+		super();
+		this.payload = payload;
+	}
+
+
 	/**
 	 * Get the actual JSON object backing this payload.
+	 * Since the object can be modified directly, the payload size is no longer tracked once this method
+	 * has been called, and is computed again each time it is needed.
 	 * @return a JSONObject
 	 */
 	public JSONObject getPayload() {
+		this.sizeTrackable = false;
+		this.encodedSize = -1;
+		return this.payload;
+	}
+
+
+	/**
+	 * Get the JSON object backing this payload without giving up size tracking, for subclasses which only
+	 * modify it through put and remove (or before any property was added).
+	 * @return a JSONObject
+	 */
+	JSONObject getRootObject() {
+		this.encodedSize = -1;
 		return this.payload;
 	}
 
@@ -155,6 +187,7 @@ public abstract class Payload {
 		} catch (Exception ex) {
 			bytes = toString().getBytes();
 		}
+		if (isPayloadSizeTracked()) encodedSize = bytes.length;
 		return bytes;
 	}
 
@@ -162,14 +195,80 @@ public abstract class Payload {
 	/**
 	 * Get the number of bytes that the payload will occupy when streamed.
 	 * 
+	 * The size is maintained as properties are put or removed, so the payload is
+	 * only serialized if its size is unknown or cannot be tracked (ex: once getPayload() was called).
+	 * 
 	 * @return a number of bytes
 	 * @throws Exception
 	 */
 	public int getPayloadSize() throws Exception {
+		if (encodedSize >= 0 && isPayloadSizeTracked()) return encodedSize;
 		return getPayloadAsBytesUnchecked().length;
 	}
 
 
+	/**
+	 * Sizes can only be computed without serializing if the payload is encoded in UTF-8,
+	 * which is what the escaping rules of JSONEscaper count.
+	 */
+	private boolean isPayloadSizeTracked() {
+		return sizeTrackable && "UTF-8".equalsIgnoreCase(characterEncoding);
+	}
+
+
+	/**
+	 * Compute the exact size of the payload after putting (or removing) a property in one of its JSON objects.
+	 * 
+	 * @param propertyName the name of the property
+	 * @param propertyValue the new value of the property, or null if the property is removed
+	 * @param object a JSONObject belonging to this payload
+	 * @return a number of bytes, or -1 if the size cannot be computed without serializing the whole payload
+	 */
+	private int getPayloadSizeAfterPutting(String propertyName, Object propertyValue, JSONObject object) {
+		if (propertyName == null || !isPayloadSizeTracked()) return -1;
+		try {
+			if (encodedSize < 0) {
+				if (!isPayloadSizeEstimatedWhenAdding()) return -1;
+				getPayloadAsBytesUnchecked();
+			}
+			int size = encodedSize;
+			int members = object.length();
+			Object previousValue = object.opt(propertyName);
+			if (previousValue != null) {
+				size -= getMemberSize(propertyName, previousValue);
+				members--;
+			}
+			if (propertyValue != null) {
+				size += getMemberSize(propertyName, propertyValue);
+				members++;
+			}
+			/* Commas between members */
+			size += Math.max(members - 1, 0) - Math.max(object.length() - 1, 0);
+			return size;
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+
+	private static int getMemberSize(String name, Object value) throws Exception {
+		int size = JSONEscaper.escapedLength(name, (char) 0) + 3;
+		if (value instanceof String) size += JSONEscaper.escapedLength((String) value, (char) 0) + 2;
+		else size += JSONEscaper.valueToString(value).getBytes(DEFAULT_CHARACTER_ENCODING).length;
+		return size;
+	}
+
+
+	/**
+	 * Values which can be modified after being put (JSON objects, arrays, collections, maps) cannot be tracked,
+	 * since they could change without this payload knowing.  Dictionaries created by the payload itself are
+	 * added with putDictionary instead, which keeps tracking the size.
+	 */
+	private static boolean isTrackableValue(Object value) {
+		return value == null || value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof JSONNull || JSONObject.NULL.equals(value);
+	}
+
+
 	/**
 	 * Check if the payload exceeds the maximum size allowed.
 	 * The maximum size allowed is returned by the getMaximumPayloadSize() method.
@@ -178,8 +277,7 @@ public abstract class Payload {
 	 */
 	private boolean isPayloadTooLong() {
 		try {
-			byte[] bytes = getPayloadAsBytesUnchecked();
-			if (bytes.length > getMaximumPayloadSize()) return true;
+			if (getPayloadSize() > getMaximumPayloadSize()) return true;
 		} catch (Exception e) {
 		}
 		return false;
@@ -200,7 +298,7 @@ public abstract class Payload {
 	public int estimatePayloadSizeAfterAdding(String propertyName, Object propertyValue) {
 		try {
 			int maximumPayloadSize = getMaximumPayloadSize();
-			int currentPayloadSize = getPayloadAsBytesUnchecked().length;
+			int currentPayloadSize = getPayloadSize();
 			int estimatedSize = currentPayloadSize;
 			if (propertyName != null && propertyValue != null) {
 				estimatedSize += 5; // "":""
@@ -257,6 +355,9 @@ public abstract class Payload {
 	/**
 	 * Puts a property in a JSONObject, while possibly checking for estimated payload size violation.
 	 * 
+	 * The payload size is kept up to date as properties are put, so the check is exact and does not
+	 * serialize the payload, as long as the JSONObject belongs to this payload.
+	 * 
 	 * @param propertyName the name of the property to use for calculating the estimation
 	 * @param propertyValue the value of the property to use for calculating the estimation
 	 * @param object the JSONObject to put the property in
@@ -264,10 +365,33 @@ public abstract class Payload {
 	 * @throws JSONException
 	 */
 	protected void put(String propertyName, Object propertyValue, JSONObject object, boolean opt) throws JSONException {
+		put(propertyName, propertyValue, object, opt, isTrackableValue(propertyValue));
+	}
+
+
+	/**
+	 * Puts a new, empty dictionary in a JSONObject.  Since the dictionary belongs to this payload and is only
+	 * modified through put and remove, the payload size is still tracked.
+	 * 
+	 * @param propertyName the name of the dictionary
+	 * @param object the JSONObject to put the dictionary in
+	 * @return the new dictionary
+	 * @throws JSONException
+	 */
+	protected JSONObject putDictionary(String propertyName, JSONObject object) throws JSONException {
+		JSONObject dictionary = new JSONObject();
+		put(propertyName, dictionary, object, false, true);
+		return dictionary;
+	}
+
+
+	private void put(String propertyName, Object propertyValue, JSONObject object, boolean opt, boolean trackable) throws JSONException {
+		if (opt && (propertyName == null || propertyValue == null)) return;
+		int sizeAfterPutting = getPayloadSizeAfterPutting(propertyName, propertyValue, object);
 		try {
 			if (isPayloadSizeEstimatedWhenAdding()) {
 				int maximumPayloadSize = getMaximumPayloadSize();
-				int estimatedPayloadSize = estimatePayloadSizeAfterAdding(propertyName, propertyValue);
+				int estimatedPayloadSize = sizeAfterPutting >= 0 ? sizeAfterPutting : estimatePayloadSizeAfterAdding(propertyName, propertyValue);
 				boolean estimatedToExceed = estimatedPayloadSize > maximumPayloadSize;
 				if (estimatedToExceed) throw new PayloadMaxSizeProbablyExceededException(maximumPayloadSize, estimatedPayloadSize);
 			}
@@ -278,10 +402,23 @@ public abstract class Payload {
 		}
 		if (opt) object.putOpt(propertyName, propertyValue);
 		else object.put(propertyName, propertyValue);
+		if (!trackable) sizeTrackable = false;
+		encodedSize = sizeAfterPutting;
 	}
 
+
+	/**
+	 * Removes a property from a JSONObject, keeping track of the payload size.
+	 * 
+	 * @param propertyName the name of the property to remove
+	 * @param object the JSONObject to remove the property from
+	 * @return the value of the removed property, or null if there was none
+	 */
 	protected Object remove(String propertyName, JSONObject object) {
-		return object.remove(propertyName);
+		int sizeAfterRemoving = getPayloadSizeAfterPutting(propertyName, null, object);
+		Object removed = object.remove(propertyName);
+		encodedSize = sizeAfterRemoving;
+		return removed;
 	}
 
 	/**
@@ -324,6 +461,7 @@ public abstract class Payload {
 	 */
 	public void setCharacterEncoding(String characterEncoding) {
 		this.characterEncoding = characterEncoding;
+		this.encodedSize = -1;
 	}
 
 
@@ -359,6 +497,39 @@ public abstract class Payload {
 	}
 
 
+	/**
+	 * Get an immutable snapshot of this payload, which can be shared by any number of threads and connections.
+	 * The snapshot holds this payload's encoded bytes, so it is encoded only once no matter how many devices
+	 * it is pushed to, and later changes to this payload do not affect it.  Frozen payloads reject any modification.
+	 * 
+	 * @return a frozen payload
+	 * @throws PayloadMaxSizeExceededException if the payload exceeds the maximum size allowed
+	 * @throws IllegalStateException if this is a test payload, which is modified for every notification pushed
+	 */
+	public Payload freeze() throws PayloadMaxSizeExceededException {
+		if (getPreSendConfiguration() != 0) throw new IllegalStateException("Test payloads cannot be frozen");
+		byte[] bytes;
+		try {
+			bytes = getPayloadAsBytes();
+		} catch (PayloadMaxSizeExceededException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("Payload cannot be encoded: " + e.getMessage(), e);
+		}
+		return new RawPayload(this, bytes);
+	}
+
+
+	/**
+	 * Indicates if this payload is an immutable snapshot returned by freeze().
+	 * 
+	 * @return true if the payload cannot be modified, false otherwise
+	 */
+	public boolean isFrozen() {
+		return false;
+	}
+
+
 	/**
 	 * Enables a special simulation mode which causes the library to behave
 	 * as usual *except* that at the precise point where the payload would
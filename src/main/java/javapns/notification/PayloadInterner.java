@@ -0,0 +1,87 @@
+package javapns.notification;
+
+/**
+ * <p>Shares a single frozen copy of a payload object pushed to many devices.</p>
+ * 
+ * <p>Batches of payload/device pairs often reuse the same payload object for many devices.  The interner remembers
+ * payload objects recently seen, and the second time an object comes up it returns a {@link Payload#freeze() frozen}
+ * copy of it, which is then returned for every later occurrence of the same object.  Each such payload is therefore
+ * encoded at most twice (once when first pushed, once when frozen) instead of once per device.</p>
+ * 
+ * <p>Payloads are recognized by identity only:  distinct payload objects with identical content are encoded
+ * separately, exactly as they would be without an interner.  Since pushed notifications keep the original payloads,
+ * sharing bytes across distinct objects would only add to the memory retained by a batch.  A payload object seen
+ * only once is returned as is, so batches of distinct payloads pay nothing but a lookup in a small fixed-size table.</p>
+ * 
+ * <p>Frozen payloads are meant to be transmitted in place of the original ones (see
+ * {@link PushNotificationManager#sendNotification(javapns.devices.Device, Payload, Payload, boolean)}), so that
+ * pushed notifications still report the original payloads.  The interner never modifies the payloads it is given,
+ * but a payload must not be modified once it has been pushed.  Payloads are interned as they are pushed, so an
+ * interner is best used by a single sending thread.</p>
+ * 
+ * <p>Payloads which cannot be frozen (test payloads, or payloads exceeding their maximum size) are returned as is,
+ * so that they fail or behave exactly as they would have without interning.</p>
+ */
+public class PayloadInterner {
+
+	private static final int DEFAULT_CAPACITY = 256;
+
+	/* Direct-mapped table by identity:  payload objects recently seen, and their frozen copy once seen twice */
+	private final Payload[] originals;
+	private final Payload[] copies;
+	private final int mask;
+
+
+	/**
+	 * Create an interner remembering up to 256 payload objects.
+	 */
+	public PayloadInterner() {
+		this(DEFAULT_CAPACITY);
+	}
+
+
+	/**
+	 * Create an interner remembering a limited number of payload objects.
+	 * When two payload objects compete for the same entry, the most recent one is remembered.
+	 * 
+	 * @param capacity a number of payload objects (rounded up to a power of two)
+	 */
+	public PayloadInterner(int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException("Capacity must be greater than zero");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) size <<= 1;
+		this.originals = new Payload[size];
+		this.copies = new Payload[size];
+		this.mask = size - 1;
+	}
+
+
+	/**
+	 * Get the payload to transmit in place of the one provided.
+	 * 
+	 * @param payload a payload
+	 * @return a frozen copy of the payload if the same object was seen before, or the payload itself
+	 */
+	public synchronized Payload intern(Payload payload) {
+		if (payload == null || payload.isFrozen()) return payload;
+		int slot = System.identityHashCode(payload) & mask;
+		if (originals[slot] != payload) {
+			/* First occurrence (or forgotten since):  it may well be the only one, so do not pay for a copy yet */
+			originals[slot] = payload;
+			copies[slot] = null;
+			return payload;
+		}
+		if (copies[slot] == null) {
+			copies[slot] = payload;
+			if (payload.getPreSendConfiguration() == 0) {
+				try {
+					copies[slot] = payload.freeze();
+				} catch (Exception e) {
+					/* Leave the payload alone:  the error will be reported when it is pushed */
+				}
+			}
+		}
+		return copies[slot];
+	}
+
+}
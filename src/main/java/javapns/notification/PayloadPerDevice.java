@@ -8,12 +8,41 @@ import javapns.devices.implementations.basic.*;
  * A one-to-one link between a payload and device.
  * Provides support for a typical payload-per-device scenario.
  * 
+ * <p>When queued in a {@link javapns.notification.transmission.PushQueue PushQueue}, the message's priority
+ * decides which lane it is queued in, so that urgent messages are not delayed by a backlog of bulk messages.</p>
+ * 
+ * <p>A message can also be given a collapse key:  if a newer message with the same collapse key is queued for the same device
+ * while this one is still waiting in the queue, this one is superseded and will not be pushed (ex: successive badge updates).</p>
+ * 
  * @author Sylvain Pedneault
  */
 public class PayloadPerDevice {
 
+	/**
+	 * Priorities supported by push queues, from the most urgent to the least urgent.
+	 */
+	public static enum PRIORITY {
+		/**
+		 * For transactional messages which must be pushed as soon as possible (login codes, chat, etc.).
+		 */
+		HIGH,
+
+		/**
+		 * The default priority.
+		 */
+		NORMAL,
+
+		/**
+		 * For bulk messages which can wait until more urgent messages have been pushed.
+		 */
+		LOW
+	};
+
 	private Payload payload;
 	private Device device;
+	private PRIORITY priority = PRIORITY.NORMAL;
+	private long queuedTime = 0;
+	private String collapseKey;
 
 
 	public PayloadPerDevice(Payload payload, String token) throws InvalidDeviceTokenFormatException {
@@ -30,6 +59,12 @@ public class PayloadPerDevice {
 	}
 
 
+	public PayloadPerDevice(Payload payload, Device device, PRIORITY priority) {
+		this(payload, device);
+		setPriority(priority);
+	}
+
+
 	public Payload getPayload() {
 		return payload;
 	}
@@ -39,4 +74,69 @@ public class PayloadPerDevice {
 		return device;
 	}
 
+
+	public PRIORITY getPriority() {
+		return priority;
+	}
+
+
+	/**
+	 * Set the priority of this message when queued.
+	 * 
+	 * @param priority a priority (default is NORMAL)
+	 */
+	public void setPriority(PRIORITY priority) {
+		this.priority = priority != null ? priority : PRIORITY.NORMAL;
+	}
+
+
+	public String getCollapseKey() {
+		return collapseKey;
+	}
+
+
+	/**
+	 * Set a key identifying messages which supersede each other when queued for the same device.
+	 * 
+	 * @param collapseKey a key (ex: "badge"), or null if this message should never be superseded (default)
+	 */
+	public void setCollapseKey(String collapseKey) {
+		this.collapseKey = collapseKey;
+	}
+
+
+	/**
+	 * Get the time at which this message was first added to a push queue.
+	 * 
+	 * @return a time in milliseconds, or 0 if the message was never queued
+	 */
+	public long getQueuedTime() {
+		return queuedTime;
+	}
+
+
+	/**
+	 * Set the time at which this message was first added to a push queue.
+	 * Push queues set it automatically;  it only needs to be set when restoring a message queued earlier.
+	 * 
+	 * @param queuedTime a time in milliseconds
+	 */
+	public void setQueuedTime(long queuedTime) {
+		this.queuedTime = queuedTime;
+	}
+
+
+	/**
+	 * Determine if this message waited in a queue longer than its payload's expiry.
+	 * Messages whose payload has no expiry (zero or less) never expire in a queue.
+	 * 
+	 * @param now the current time in milliseconds
+	 * @return true if the message expired and should not be pushed anymore
+	 */
+	public boolean isExpired(long now) {
+		if (payload == null || queuedTime <= 0) return false;
+		int expiry = payload.getExpiry();
+		return expiry > 0 && now - queuedTime > expiry * 1000L;
+	}
+
 }
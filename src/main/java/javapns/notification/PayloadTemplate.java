@@ -0,0 +1,259 @@
+package javapns.notification;
+
+import java.io.*;
+import java.util.*;
+
+import javapns.notification.exceptions.*;
+
+import org.json.*;
+
+/**
+ * <p>A JSON payload parsed once, with placeholders substituted for each device.</p>
+ * 
+ * <p>Building a PushNotificationPayload for each device creates a tree of JSONObject maps which
+ * must then be serialized, which adds up when pushing personalized messages to millions of devices.
+ * A template instead splits its JSON text into static UTF-8 segments once, and renders each device's
+ * values (properly JSON-escaped) directly into a byte array of the exact payload size.</p>
+ * 
+ * <p>Placeholders are written as <code>${name}</code>, either inside a string, in which case the value
+ * is escaped into that string, or in place of a value, in which case numbers and booleans are rendered as is,
+ * null as <code>null</code> and anything else as a JSON string.  A missing value is rendered as null
+ * (an empty string inside a string).</p>
+ * 
+ * <p>Usage:</p>
+ * <pre>
+ * PayloadTemplate template = new PayloadTemplate("{\"aps\":{\"alert\":\"Hello ${name}!\",\"badge\":${badge}}}");
+ * Map&lt;String, Object&gt; values = new HashMap&lt;String, Object&gt;();
+ * values.put("name", "Jane");
+ * values.put("badge", 3);
+ * Payload payload = template.render(values);</pre>
+ * 
+ * <p>Rendered payloads are {@link RawPayload raw payloads}:  they are always encoded in UTF-8 and cannot be modified.</p>
+ */
+public class PayloadTemplate {
+
+	/* Maximum size allowed by Apple for regular notifications */
+	private static final int DEFAULT_MAXIMUM_PAYLOAD_SIZE = 256;
+
+	private final String template;
+	private final int maximumPayloadSize;
+
+	/* Static segments surround placeholders:  segments.length == names.length + 1 */
+	private final byte[][] segments;
+	private final String[] names;
+	private final boolean[] quoted;
+	private final char[] previous;
+	private final int staticLength;
+
+	private int expiry = 1 * 24 * 60 * 60;
+
+
+	/**
+	 * Parse a template for regular notifications (256 bytes maximum).
+	 * 
+	 * @param template a JSON-formatted string containing placeholders (ex: {"aps":{"alert":"Hello ${name}!"}} )
+	 * @throws JSONException thrown if the template is not valid JSON
+	 */
+	public PayloadTemplate(String template) throws JSONException {
+		this(template, DEFAULT_MAXIMUM_PAYLOAD_SIZE);
+	}
+
+
+	/**
+	 * Parse a template.
+	 * 
+	 * @param template a JSON-formatted string containing placeholders (ex: {"aps":{"alert":"Hello ${name}!"}} )
+	 * @param maximumPayloadSize the maximum size of rendered payloads, in bytes
+	 * @throws JSONException thrown if the template is not valid JSON
+	 */
+	public PayloadTemplate(String template, int maximumPayloadSize) throws JSONException {
+		this.template = template;
+		this.maximumPayloadSize = maximumPayloadSize;
+
+		List<String> segmentList = new ArrayList<String>();
+		List<String> nameList = new ArrayList<String>();
+		List<Boolean> quotedList = new ArrayList<Boolean>();
+		List<Character> previousList = new ArrayList<Character>();
+
+		boolean inString = false;
+		int segmentStart = 0;
+		int i = 0;
+		int len = template.length();
+		while (i < len) {
+			char c = template.charAt(i);
+			if (inString && c == '\\') {
+				i += 2;
+				continue;
+			}
+			if (c == '"') {
+				inString = !inString;
+			} else if (c == '$' && i + 1 < len && template.charAt(i + 1) == '{') {
+				int end = template.indexOf('}', i + 2);
+				if (end < 0) throw new JSONException(String.format("Unterminated placeholder at character %s", i));
+				String name = template.substring(i + 2, end);
+				if (name.length() == 0) throw new JSONException(String.format("Empty placeholder at character %s", i));
+				segmentList.add(template.substring(segmentStart, i));
+				nameList.add(name);
+				quotedList.add(inString);
+				/* Match JSONObject.quote, which escapes '/' when it follows '<' */
+				previousList.add(inString && i > 0 && template.charAt(i - 1) == '<' ? '<' : (char) 0);
+				i = end + 1;
+				segmentStart = i;
+				continue;
+			}
+			i++;
+		}
+		segmentList.add(template.substring(segmentStart));
+
+		this.segments = new byte[segmentList.size()][];
+		int length = 0;
+		for (int s = 0; s < segments.length; s++) {
+			segments[s] = toBytes(segmentList.get(s));
+			length += segments[s].length;
+		}
+		this.staticLength = length;
+		this.names = nameList.toArray(new String[nameList.size()]);
+		this.quoted = new boolean[names.length];
+		this.previous = new char[names.length];
+		for (int p = 0; p < names.length; p++) {
+			quoted[p] = quotedList.get(p);
+			previous[p] = previousList.get(p);
+		}
+
+		validate();
+	}
+
+
+	/**
+	 * Make sure the template renders valid JSON, using neutral values for all placeholders.
+	 */
+	private void validate() throws JSONException {
+		StringBuilder json = new StringBuilder(template.length());
+		for (int p = 0; p < names.length; p++) {
+			json.append(toString(segments[p]));
+			if (!quoted[p]) json.append('0');
+		}
+		json.append(toString(segments[names.length]));
+		new JSONObject(json.toString());
+	}
+
+
+	/**
+	 * Render a payload for a device.
+	 * 
+	 * @param values values for the template's placeholders, by name
+	 * @return a payload ready to be pushed
+	 * @throws PayloadMaxSizeExceededException thrown if the rendered payload exceeds the template's maximum payload size
+	 * @throws JSONException thrown if a value cannot be rendered as JSON (ex: an infinite number)
+	 */
+	public RawPayload render(Map<String, ?> values) throws PayloadMaxSizeExceededException, JSONException {
+		/* First pass:  compute the exact size, so that the payload is written in a single array */
+		Object[] rendered = new Object[names.length];
+		int length = staticLength;
+		for (int p = 0; p < names.length; p++) {
+			Object value = values.get(names[p]);
+			if (quoted[p]) {
+				String string = value == null ? "" : value.toString();
+				rendered[p] = string;
+				length += JSONEscaper.escapedLength(string, previous[p]);
+			} else if (value instanceof String) {
+				rendered[p] = value;
+				length += JSONEscaper.escapedLength((String) value, (char) 0) + 2;
+			} else {
+				byte[] bytes = toBytes(JSONEscaper.valueToString(value));
+				rendered[p] = bytes;
+				length += bytes.length;
+			}
+		}
+		if (length > maximumPayloadSize) throw new PayloadMaxSizeExceededException(maximumPayloadSize, length);
+
+		byte[] bytes = new byte[length];
+		int pos = 0;
+		for (int p = 0; p < names.length; p++) {
+			System.arraycopy(segments[p], 0, bytes, pos, segments[p].length);
+			pos += segments[p].length;
+			Object value = rendered[p];
+			if (value instanceof byte[]) {
+				byte[] valueBytes = (byte[]) value;
+				System.arraycopy(valueBytes, 0, bytes, pos, valueBytes.length);
+				pos += valueBytes.length;
+			} else if (quoted[p]) {
+				pos = JSONEscaper.writeEscaped((String) value, previous[p], bytes, pos);
+			} else {
+				bytes[pos++] = '"';
+				pos = JSONEscaper.writeEscaped((String) value, (char) 0, bytes, pos);
+				bytes[pos++] = '"';
+			}
+		}
+		byte[] last = segments[names.length];
+		System.arraycopy(last, 0, bytes, pos, last.length);
+
+		RawPayload payload = new RawPayload(bytes, maximumPayloadSize);
+		payload.setExpiry(expiry);
+		return payload;
+	}
+
+
+	private static byte[] toBytes(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return string.getBytes();
+		}
+	}
+
+
+	private static String toString(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return new String(bytes);
+		}
+	}
+
+
+	/**
+	 * Get the names of this template's placeholders, in the order they first appear.
+	 * 
+	 * @return a list of placeholder names
+	 */
+	public List<String> getPlaceholders() {
+		List<String> placeholders = new ArrayList<String>();
+		for (String name : names)
+			if (!placeholders.contains(name)) placeholders.add(name);
+		return placeholders;
+	}
+
+
+	public String getTemplate() {
+		return template;
+	}
+
+
+	public int getMaximumPayloadSize() {
+		return maximumPayloadSize;
+	}
+
+
+	/**
+	 * Set the number of seconds after which rendered payloads should expire.
+	 * Default is one (1) day.
+	 * 
+	 * @param seconds
+	 */
+	public void setExpiry(int seconds) {
+		this.expiry = seconds;
+	}
+
+
+	public int getExpiry() {
+		return expiry;
+	}
+
+
+	@Override
+	public String toString() {
+		return template;
+	}
+
+}
@@ -73,6 +73,9 @@ public class PushNotificationManager {
 
 	private LinkedHashMap<Integer, PushedNotification> pushedNotifications = new LinkedHashMap<Integer, PushedNotification>();
 
+	/* Optional listener receiving results as soon as they are produced */
+	private PushedNotificationListener pushedNotificationListener;
+
 
 	/**
 	 * Constructs a PushNotificationManager
@@ -94,6 +97,18 @@ public class PushNotificationManager {
 	}
 
 
+	/**
+	 * Load the keystore, initialize the SSL context and resolve the addresses of a server ahead of time,
+	 * so that the first connection to that server only has to connect (ex: when an application starts).
+	 * @param server The Apple server to prepare connections to.
+	 * @throws CommunicationException thrown if the server's address cannot be resolved
+	 * @throws KeystoreException thrown if there is a problem with your keystore
+	 */
+	public static void prepare(AppleNotificationServer server) throws CommunicationException, KeystoreException {
+		new ConnectionToNotificationServer(server).prepare();
+	}
+
+
 	/**
 	 * Initialize a connection and create a SSLSocket
 	 * @param server The Apple server to connect to.
@@ -346,8 +361,46 @@ public class PushNotificationManager {
 	 * @throws CommunicationException thrown if a communication error occurs
 	 */
 	public PushedNotification sendNotification(Device device, Payload payload, boolean closeAfter, int identifier) throws CommunicationException {
+		return sendNotification(device, payload, null, closeAfter, identifier);
+	}
+
+
+	/**
+	 * Send a notification (Payload) to the given device, transmitting the bytes of a frozen snapshot of the payload.
+	 * 
+	 * @param device the device to be notified
+	 * @param payload the payload reported in the pushed notification
+	 * @param snapshot a frozen snapshot of the payload to transmit, or null to transmit the payload itself
+	 * @param closeAfter indicates if the connection should be closed after the payload has been sent
+	 * @return a pushed notification with details on transmission result and error (if any)
+	 * @throws CommunicationException thrown if a communication error occurs
+	 * @see #sendNotification(Device, Payload, Payload, boolean, int)
+	 */
+	public PushedNotification sendNotification(Device device, Payload payload, Payload snapshot, boolean closeAfter) throws CommunicationException {
+		return sendNotification(device, payload, snapshot, closeAfter, SEQUENTIAL_IDENTIFIER);
+	}
+
+
+	/**
+	 * Send a notification (Payload) to the given device, transmitting the bytes of a frozen snapshot of the payload.
+	 * 
+	 * Many notifications can thus share a single encoded copy of the same payload (see {@link Payload#freeze()}),
+	 * while the pushed notification still reports the original payload.  The snapshot is also used if the notification
+	 * has to be resent, so the original payload can be modified once this method returns.
+	 * 
+	 * @param device the device to be notified
+	 * @param payload the payload reported in the pushed notification
+	 * @param snapshot a frozen snapshot of the payload to transmit, or null to transmit the payload itself
+	 * @param closeAfter indicates if the connection should be closed after the payload has been sent
+	 * @param identifier a unique identifier which will match any error reported later (if any)
+	 * @return a pushed notification with details on transmission result and error (if any)
+	 * @throws CommunicationException thrown if a communication error occurs
+	 */
+	public PushedNotification sendNotification(Device device, Payload payload, Payload snapshot, boolean closeAfter, int identifier) throws CommunicationException {
 		PushedNotification pushedNotification = new PushedNotification(device, payload, identifier);
+		if (snapshot != payload) pushedNotification.setTransmittedPayload(snapshot);
 		sendNotification(pushedNotification, closeAfter);
+		if (pushedNotificationListener != null) pushedNotificationListener.eventNotificationPushed(pushedNotification);
 		return pushedNotification;
 	}
 
@@ -362,7 +415,7 @@ public class PushNotificationManager {
 	private void sendNotification(PushedNotification notification, boolean closeAfter) throws CommunicationException {
 		try {
 			Device device = notification.getDevice();
-			Payload payload = notification.getPayload();
+			Payload payload = notification.getTransmittedPayload();
 			try {
 				payload.verifyPayloadIsNotEmpty();
 			} catch (IllegalArgumentException e) {
@@ -393,8 +446,10 @@ public class PushNotificationManager {
 			// Keep trying until we have a success
 			while (!success) {
 				try {
-					logger.debug("Attempting to send notification: " + payload.toString() + "");
-					logger.debug("  to device: " + token + "");
+					if (logger.isDebugEnabled()) {
+						logger.debug("Attempting to send notification: " + payload.toString() + "");
+						logger.debug("  to device: " + token + "");
+					}
 					notification.addTransmissionAttempt();
 					boolean streamConfirmed = false;
 					try {
@@ -690,6 +745,15 @@ public class PushNotificationManager {
 	}
 
 
+	/**
+	 * Get the time spent on the TLS handshake of the current connection.
+	 * @return a duration in milliseconds, or -1 if no connection was initialized
+	 */
+	public long getHandshakeTime() {
+		return connectionToAppleServer != null ? connectionToAppleServer.getHandshakeTime() : -1;
+	}
+
+
 	/**
 	 * Set whether or not to enable the "trust all server certificates" feature to simplify SSL communications.
 	 * @param trustAllServerCertificates
@@ -734,6 +798,32 @@ public class PushNotificationManager {
 	}
 
 
+	/**
+	 * Notify the attached listener (if any) that an error-response packet was linked to a notification.
+	 * 
+	 * @param notification the notification that Apple reported an error for
+	 */
+	void errorResponseReceived(PushedNotification notification) {
+		if (pushedNotificationListener != null) pushedNotificationListener.eventErrorResponseReceived(notification);
+	}
+
+
+	/**
+	 * Provide a listener which will be notified of each notification as soon as it is pushed,
+	 * and of any error-response later received for it.
+	 * 
+	 * @param listener any object implementing the PushedNotificationListener interface (or null to remove it)
+	 */
+	public void setPushedNotificationListener(PushedNotificationListener listener) {
+		this.pushedNotificationListener = listener;
+	}
+
+
+	public PushedNotificationListener getPushedNotificationListener() {
+		return pushedNotificationListener;
+	}
+
+
 	/**
 	 * Enable or disable the enhanced notification format (enabled by default).
 	 * @param enabled true to enable, false to disable
@@ -1,6 +1,7 @@
 package javapns.notification;
 
 import javapns.notification.exceptions.PayloadAlertAlreadyExistsException;
+import javapns.notification.exceptions.PayloadMaxSizeExceededException;
 import org.json.JSONException;
 import org.json.JSONNull;
 import org.json.JSONObject;
@@ -118,6 +119,7 @@ public class PushNotificationPayload extends Payload {
 
 	/**
 	 * Create a PushNotificationPayload object from a preformatted JSON payload.
+	 * If the payload does not need to be modified, a {@link RawPayload} avoids parsing it.
 	 * @param rawJSON a JSON-formatted string representing a payload (ex: {"aps":{"alert":"Hello World!"}} )
 	 * @return a ready-to-send payload
 	 * @throws JSONException if any exception occurs parsing the JSON string
@@ -138,7 +140,7 @@ public class PushNotificationPayload extends Payload {
 		super();
 		this.apsDictionary = new JSONObject();
 		try {
-			JSONObject payload = getPayload();
+			JSONObject payload = getRootObject();
 			if (!payload.has("aps")) payload.put("aps", this.apsDictionary);
 		} catch (JSONException e) {
 			e.printStackTrace();
@@ -155,7 +157,7 @@ public class PushNotificationPayload extends Payload {
 	public PushNotificationPayload(String rawJSON) throws JSONException {
 		super(rawJSON);
 		try {
-			JSONObject payload = getPayload();
+			JSONObject payload = getRootObject();
 			this.apsDictionary = payload.getJSONObject("aps");
 			if (this.apsDictionary == null) {
 				this.apsDictionary = new JSONObject();
@@ -230,10 +232,7 @@ public class PushNotificationPayload extends Payload {
 	 */
 	private JSONObject getOrAddCustomAlert() throws JSONException {
 		JSONObject alert = getCompatibleProperty("alert", JSONObject.class, "A simple alert (\"%s\") was already added to this payload");
-		if (alert == null) {
-			alert = new JSONObject();
-			put("alert", alert, this.apsDictionary, false);
-		}
+		if (alert == null) alert = putDictionary("alert", this.apsDictionary);
 		return alert;
 	}
 
@@ -431,6 +430,77 @@ public class PushNotificationPayload extends Payload {
 		}
 	}
 
+	/**
+	 * Truncate the alert message so that the payload fits in the maximum payload size.
+	 * 
+	 * @return true if the alert was truncated, false if the payload already fitted
+	 * @throws PayloadMaxSizeExceededException if the payload is too big even without any alert message
+	 * @throws JSONException
+	 */
+	public boolean fitAlertToMaximumSize() throws PayloadMaxSizeExceededException, JSONException {
+		return fitAlertToMaximumSize(null);
+	}
+
+
+	/**
+	 * Truncate the alert message so that the payload fits in the maximum payload size,
+	 * ending the truncated message with an ellipsis.
+	 * 
+	 * The message is truncated in a single pass over its characters, at a code point boundary,
+	 * from the exact number of bytes by which the payload exceeds its maximum size.
+	 * The message truncated is either the simple alert, or the body of the custom alert.
+	 * 
+	 * @param ellipsis a string to append to the truncated message (ex: "..."), or null for none
+	 * @return true if the alert was truncated, false if the payload already fitted
+	 * @throws PayloadMaxSizeExceededException if the payload is too big even without any alert message
+	 * @throws JSONException
+	 */
+	public boolean fitAlertToMaximumSize(String ellipsis) throws PayloadMaxSizeExceededException, JSONException {
+		int maximumPayloadSize = getMaximumPayloadSize();
+		int payloadSize = getCurrentPayloadSize();
+		if (payloadSize <= maximumPayloadSize) return false;
+
+		JSONObject dictionary = this.apsDictionary;
+		String propertyName = "alert";
+		Object alert = this.apsDictionary.opt("alert");
+		if (alert instanceof JSONObject) {
+			dictionary = (JSONObject) alert;
+			propertyName = "body";
+			alert = dictionary.opt("body");
+		}
+		if (!(alert instanceof String)) throw new PayloadMaxSizeExceededException(maximumPayloadSize, payloadSize);
+
+		String message = (String) alert;
+		int messageSize = JSONEscaper.escapedLength(message, (char) 0);
+		/* The ellipsis' cost is counted as if it followed a '<', which may only make it one byte more expensive */
+		int ellipsisSize = ellipsis != null ? JSONEscaper.escapedLength(ellipsis, '<') : 0;
+		int available = messageSize - (payloadSize - maximumPayloadSize) - ellipsisSize;
+		if (available < 0) {
+			available += ellipsisSize;
+			if (available < 0) throw new PayloadMaxSizeExceededException(maximumPayloadSize, payloadSize - messageSize);
+			/* The ellipsis does not fit:  truncate without it */
+			ellipsis = null;
+		}
+		String truncated = message.substring(0, JSONEscaper.truncationIndex(message, (char) 0, available));
+		if (ellipsis != null) truncated += ellipsis;
+		logger.debug("Truncating " + propertyName + " [" + message + "] to [" + truncated + "]");
+		put(propertyName, truncated, dictionary, false);
+
+		payloadSize = getCurrentPayloadSize();
+		if (payloadSize > maximumPayloadSize) throw new PayloadMaxSizeExceededException(maximumPayloadSize, payloadSize);
+		return true;
+	}
+
+
+	private int getCurrentPayloadSize() throws PayloadMaxSizeExceededException {
+		try {
+			return getPayloadSize();
+		} catch (Exception e) {
+			throw new PayloadMaxSizeExceededException(e.getMessage());
+		}
+	}
+
+
 	/**
 	 * Return the maximum payload size in bytes.
 	 * For APNS payloads, this method returns 256.
@@ -18,6 +18,7 @@ import javapns.notification.exceptions.*;
 public class PushedNotification {
 
 	private Payload payload;
+	private Payload transmittedPayload;
 	private Device device;
 	private ResponsePacket response;
 
@@ -28,6 +29,10 @@ public class PushedNotification {
 
 	private Exception exception;
 
+	/* The list which first recorded this notification, and whether that list retained it */
+	private PushedNotifications recorder;
+	private boolean retained;
+
 
 	protected PushedNotification(Device device, Payload payload) {
 		this.device = device;
@@ -64,6 +69,21 @@ public class PushedNotification {
 	}
 
 
+	/**
+	 * Get the payload whose bytes are actually transmitted, which is a frozen snapshot of the payload if one was provided.
+	 * 
+	 * @return a payload
+	 */
+	Payload getTransmittedPayload() {
+		return transmittedPayload != null ? transmittedPayload : payload;
+	}
+
+
+	void setTransmittedPayload(Payload transmittedPayload) {
+		this.transmittedPayload = transmittedPayload;
+	}
+
+
 	/**
 	 * Returns the device that the payload was pushed to.
 	 * @return the device that the payload was pushed to
@@ -169,8 +189,10 @@ public class PushedNotification {
 
 
 	protected void setResponse(ResponsePacket response) {
+		boolean wasSuccessful = isSuccessful();
 		this.response = response;
 		if (response != null && exception == null) exception = new ErrorResponsePacketReceivedException(response);
+		if (wasSuccessful && !isSuccessful() && recorder != null) recorder.notificationFailed(this);
 	}
 
 
@@ -264,6 +286,26 @@ public class PushedNotification {
 	}
 
 
+	PushedNotifications getRecorder() {
+		return recorder;
+	}
+
+
+	void setRecorder(PushedNotifications recorder) {
+		this.recorder = recorder;
+	}
+
+
+	boolean isRetained() {
+		return retained;
+	}
+
+
+	void setRetained(boolean retained) {
+		this.retained = retained;
+	}
+
+
 	/**
 	 * Get the exception that occurred while trying to push this notification, if any.
 	 * @return an exception (if any was thrown)
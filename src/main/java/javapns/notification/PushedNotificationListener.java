@@ -0,0 +1,26 @@
+package javapns.notification;
+
+/**
+ * <h1>An event listener for receiving push results as they are produced</h1>
+ * 
+ * <p>Instead of accumulating all results in a {@link PushedNotifications} list and
+ * inspecting them once the work is done, a listener attached to a {@link PushNotificationManager}
+ * (or to a {@link javapns.notification.transmission.NotificationThread NotificationThread} or
+ * {@link javapns.notification.transmission.NotificationThreads NotificationThreads}) is notified
+ * of each notification as soon as it has been pushed.</p>
+ * 
+ * <p>Because Apple reports errors asynchronously, a notification reported as pushed
+ * may later be reported again through {@code eventErrorResponseReceived} if an
+ * error-response packet is received for it.</p>
+ * 
+ * <p>Events are fired from the thread doing the actual push, so implementations
+ * should return quickly and must be thread-safe if shared between threads.</p>
+ */
+public interface PushedNotificationListener {
+
+	public void eventNotificationPushed(PushedNotification notification);
+
+
+	public void eventErrorResponseReceived(PushedNotification notification);
+
+}
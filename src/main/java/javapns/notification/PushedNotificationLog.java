@@ -0,0 +1,424 @@
+package javapns.notification;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import javapns.devices.*;
+
+/**
+ * <p>An append-only log of push results, stored as fixed-width records in a memory-mapped file.</p>
+ * 
+ * <p>Holding one PushedNotification object per device can take a lot of memory when pushing to millions of devices.
+ * Attached to a {@link PushedNotifications} list (usually combined with {@link RetentionPolicy#COUNTERS_ONLY}), this log
+ * streams the outcome of each notification to disk instead, providing a complete audit trail at a very low heap cost.</p>
+ * 
+ * <p>Each record is {@value #RECORD_SIZE} bytes long and contains the notification identifier, the 32-byte device token,
+ * the status code returned by Apple (if any), the number of transmission attempts, the expiry and the time at which the
+ * outcome was recorded.  Since Apple reports errors asynchronously, a notification first recorded as successful gets a
+ * second record if an error-response is received for it later on.</p>
+ * 
+ * <p>The file is grown and mapped in segments, so it may end with unused zero-filled space.  Records can be scanned
+ * with {@link #iterator()} or {@link #getFailedRecords()}, while the log is being written or after it was closed and reopened.</p>
+ */
+public class PushedNotificationLog implements Iterable<PushedNotificationLog.Record> {
+
+	/**
+	 * The size of each record (and of the file header), in bytes.
+	 */
+	public static final int RECORD_SIZE = 64;
+
+	private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final byte[] MAGIC = { 'J', 'P', 'N', 'S', 'L', 'O', 'G', 1 };
+
+	/* Record layout */
+	private static final int IDENTIFIER = 0;
+	private static final int TOKEN = 4;
+	private static final int TOKEN_LENGTH = 32;
+	private static final int STATUS = 36;
+	private static final int FLAGS = 37;
+	private static final int ATTEMPTS = 38;
+	private static final int EXPIRY = 40;
+	private static final int TIMESTAMP = 48;
+
+	/* Record flags (FLAG_RECORDED marks the end of written records in a zero-filled segment) */
+	private static final int FLAG_RECORDED = 0x01;
+	private static final int FLAG_SUCCESSFUL = 0x02;
+	private static final int FLAG_ERROR_RESPONSE = 0x04;
+	private static final int FLAG_EXCEPTION = 0x08;
+
+	private final File file;
+	private final int segmentSize;
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+
+	/* Segment currently mapped for writing, and the file offset at which it starts */
+	private MappedByteBuffer segment;
+	private long segmentOffset;
+
+	/* File offset of the next record to write */
+	private long end;
+
+
+	/**
+	 * Open a log file for appending records, creating it if it does not exist.
+	 * 
+	 * @param file the log file
+	 * @throws IOException if the file cannot be opened or is not a result log
+	 */
+	public PushedNotificationLog(File file) throws IOException {
+		this(file, DEFAULT_SEGMENT_SIZE);
+	}
+
+
+	/**
+	 * Open a log file for appending records, creating it if it does not exist.
+	 * 
+	 * @param file the log file
+	 * @param segmentSize the number of bytes by which the file is grown and mapped at a time (rounded to a multiple of the record size)
+	 * @throws IOException if the file cannot be opened or is not a result log
+	 */
+	public PushedNotificationLog(File file, int segmentSize) throws IOException {
+		this.file = file;
+		this.segmentSize = Math.max(segmentSize / RECORD_SIZE, 1) * RECORD_SIZE;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+		if (channel.size() == 0) {
+			ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE);
+			header.put(MAGIC);
+			header.putInt(RECORD_SIZE);
+			header.rewind();
+			channel.write(header, 0);
+			this.end = RECORD_SIZE;
+		} else {
+			ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4);
+			channel.read(header, 0);
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			if (header.remaining() == header.capacity()) header.get(magic);
+			if (!Arrays.equals(magic, MAGIC) || header.getInt() != RECORD_SIZE) {
+				close();
+				throw new IOException("Not a pushed notification log: " + file);
+			}
+			this.end = findEnd();
+		}
+	}
+
+
+	/**
+	 * Find the end of written records by binary search, since records are written
+	 * contiguously and the unused space that follows them is zero-filled.
+	 */
+	private long findEnd() throws IOException {
+		long low = 0;
+		long high = (channel.size() - RECORD_SIZE) / RECORD_SIZE;
+		ByteBuffer flags = ByteBuffer.allocate(1);
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			flags.clear();
+			channel.read(flags, RECORD_SIZE + middle * RECORD_SIZE + FLAGS);
+			if ((flags.get(0) & FLAG_RECORDED) != 0) low = middle + 1;
+			else high = middle;
+		}
+		return RECORD_SIZE + low * RECORD_SIZE;
+	}
+
+
+	/**
+	 * Append a record describing the current outcome of a notification.
+	 * 
+	 * @param notification a pushed notification
+	 * @throws IOException if the file cannot be grown or if the log is closed
+	 */
+	public synchronized void record(PushedNotification notification) throws IOException {
+		if (channel == null) throw new IOException("Pushed notification log is closed: " + file);
+		if (segment == null || end + RECORD_SIZE > segmentOffset + segment.capacity()) {
+			segmentOffset = end;
+			segment = map(FileChannel.MapMode.READ_WRITE, segmentOffset, segmentSize);
+		}
+		int position = (int) (end - segmentOffset);
+		ResponsePacket response = notification.getResponse();
+		int flags = FLAG_RECORDED;
+		if (notification.isSuccessful()) flags |= FLAG_SUCCESSFUL;
+		if (response != null) flags |= FLAG_ERROR_RESPONSE;
+		if (notification.getException() != null) flags |= FLAG_EXCEPTION;
+
+		segment.putInt(position + IDENTIFIER, notification.getIdentifier());
+		putToken(segment, position + TOKEN, notification.getDevice());
+		segment.put(position + STATUS, (byte) (response != null ? response.getStatus() : 0));
+		segment.putShort(position + ATTEMPTS, (short) Math.min(notification.getTransmissionAttempts(), Short.MAX_VALUE));
+		segment.putLong(position + EXPIRY, notification.getExpiry());
+		segment.putLong(position + TIMESTAMP, System.currentTimeMillis());
+		/* Flags are written last, as they mark the record as complete */
+		segment.put(position + FLAGS, (byte) flags);
+		end += RECORD_SIZE;
+	}
+
+
+	private static void putToken(ByteBuffer buffer, int position, Device device) {
+		String token = device != null ? device.getToken() : null;
+		for (int i = 0; i < TOKEN_LENGTH; i++) {
+			int value = 0;
+			if (token != null && i * 2 + 1 < token.length()) {
+				int high = Character.digit(token.charAt(i * 2), 16);
+				int low = Character.digit(token.charAt(i * 2 + 1), 16);
+				if (high >= 0 && low >= 0) value = (high << 4) | low;
+			}
+			buffer.put(position + i, (byte) value);
+		}
+	}
+
+
+	/**
+	 * Force records written so far to the storage device.
+	 */
+	public synchronized void flush() {
+		if (segment != null) segment.force();
+	}
+
+
+	/**
+	 * Flush and close the log.  Records can no longer be appended or scanned once the log is closed.
+	 * 
+	 * @throws IOException if the file cannot be closed
+	 */
+	public synchronized void close() throws IOException {
+		if (channel == null) return;
+		flush();
+		segment = null;
+		channel = null;
+		randomAccessFile.close();
+	}
+
+
+	/**
+	 * Get the number of records written to this log.
+	 * 
+	 * @return a number of records
+	 */
+	public synchronized long getRecordCount() {
+		return (end - RECORD_SIZE) / RECORD_SIZE;
+	}
+
+
+	public File getFile() {
+		return file;
+	}
+
+
+	/**
+	 * Scan all records written to this log, in the order they were written.
+	 * 
+	 * @return an iterator of records
+	 */
+	public Iterator<Record> iterator() {
+		return new RecordIterator(false);
+	}
+
+
+	/**
+	 * Scan records of failed notifications only, in the order they were written.
+	 * 
+	 * @return records of failed notifications
+	 */
+	public Iterable<Record> getFailedRecords() {
+		return new Iterable<Record>() {
+
+			public Iterator<Record> iterator() {
+				return new RecordIterator(true);
+			}
+		};
+	}
+
+
+	private synchronized ByteBuffer mapForReading(long offset, long limit) throws IOException {
+		if (channel == null) throw new IOException("Pushed notification log is closed: " + file);
+		return map(FileChannel.MapMode.READ_ONLY, offset, Math.min(segmentSize, limit - offset));
+	}
+
+
+	/**
+	 * Map a region of the file.  Logs are shared by many threads, and an interrupt during channel I/O would close
+	 * the channel for all of them, so the calling thread's interrupt status is cleared while mapping, and the
+	 * file is reopened if the channel was closed by an interrupt anyway.
+	 */
+	private MappedByteBuffer map(FileChannel.MapMode mode, long offset, long size) throws IOException {
+		boolean interrupted = Thread.interrupted();
+		try {
+			try {
+				return channel.map(mode, offset, size);
+			} catch (ClosedByInterruptException e) {
+				interrupted |= Thread.interrupted();
+				randomAccessFile = new RandomAccessFile(file, "rw");
+				channel = randomAccessFile.getChannel();
+				return channel.map(mode, offset, size);
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Iterates over the records written when the iterator was created, mapping one segment at a time.
+	 */
+	private class RecordIterator implements Iterator<Record> {
+
+		private final boolean failuresOnly;
+		private final long limit;
+		private ByteBuffer buffer;
+		private long bufferOffset;
+		private long offset = RECORD_SIZE;
+		private Record next;
+
+
+		RecordIterator(boolean failuresOnly) {
+			this.failuresOnly = failuresOnly;
+			synchronized (PushedNotificationLog.this) {
+				this.limit = end;
+			}
+		}
+
+
+		public boolean hasNext() {
+			while (next == null && offset < limit) {
+				try {
+					if (buffer == null || offset + RECORD_SIZE > bufferOffset + buffer.capacity()) {
+						bufferOffset = offset;
+						buffer = mapForReading(bufferOffset, limit);
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException(e.getMessage());
+				}
+				Record record = new Record(buffer, (int) (offset - bufferOffset));
+				offset += RECORD_SIZE;
+				if (!failuresOnly || !record.isSuccessful()) next = record;
+			}
+			return next != null;
+		}
+
+
+		public Record next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			Record record = next;
+			next = null;
+			return record;
+		}
+
+
+		public void remove() {
+			throw new UnsupportedOperationException("Pushed notification logs are append-only");
+		}
+	}
+
+
+	/**
+	 * A single record read from a pushed notification log.
+	 */
+	public static class Record {
+
+		private final int identifier;
+		private final byte[] token = new byte[TOKEN_LENGTH];
+		private final int status;
+		private final int flags;
+		private final int attempts;
+		private final long expiry;
+		private final long timestamp;
+
+
+		private Record(ByteBuffer buffer, int position) {
+			this.identifier = buffer.getInt(position + IDENTIFIER);
+			for (int i = 0; i < TOKEN_LENGTH; i++)
+				token[i] = buffer.get(position + TOKEN + i);
+			this.status = buffer.get(position + STATUS) & 0xFF;
+			this.flags = buffer.get(position + FLAGS);
+			this.attempts = buffer.getShort(position + ATTEMPTS);
+			this.expiry = buffer.getLong(position + EXPIRY);
+			this.timestamp = buffer.getLong(position + TIMESTAMP);
+		}
+
+
+		public int getIdentifier() {
+			return identifier;
+		}
+
+
+		/**
+		 * Get the device token, as an hexadecimal string.
+		 * 
+		 * @return a device token
+		 */
+		public String getToken() {
+			StringBuilder hex = new StringBuilder(TOKEN_LENGTH * 2);
+			for (byte b : token) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		}
+
+
+		/**
+		 * Get the status code of the error-response packet received from Apple, if any.
+		 * 
+		 * @return a status code, or 0 if no error-response was received
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+
+		public boolean isSuccessful() {
+			return (flags & FLAG_SUCCESSFUL) != 0;
+		}
+
+
+		/**
+		 * Indicates if an error-response packet was received from Apple for this notification.
+		 * 
+		 * @return true if an error-response was received
+		 */
+		public boolean isErrorResponseReceived() {
+			return (flags & FLAG_ERROR_RESPONSE) != 0;
+		}
+
+
+		/**
+		 * Indicates if an exception occurred while trying to push this notification.
+		 * 
+		 * @return true if an exception occurred
+		 */
+		public boolean isExceptionThrown() {
+			return (flags & FLAG_EXCEPTION) != 0;
+		}
+
+
+		public int getTransmissionAttempts() {
+			return attempts;
+		}
+
+
+		public long getExpiry() {
+			return expiry;
+		}
+
+
+		/**
+		 * Get the time at which this outcome was recorded.
+		 * 
+		 * @return a time in milliseconds (as returned by System.currentTimeMillis())
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+
+		@Override
+		public String toString() {
+			return "[" + identifier + "] " + (isSuccessful() ? "successful" : "failed") + " " + getToken() + (isErrorResponseReceived() ? " (status " + status + ")" : "");
+		}
+	}
+
+}
@@ -1,27 +1,62 @@
 package javapns.notification;
 
+import java.io.*;
 import java.util.*;
 
+import org.apache.log4j.*;
+
 /**
  * <p>A list of PushedNotification objects.</p>
  * 
  * <p>This list can be configured to retain a maximum number of objects.  When that maximum is reached, older objects are removed from the list before new ones are added.</p>
  * 
- * <p>Internally, this list extends Vector.</p>
+ * <p>A {@link RetentionPolicy} can also be configured to retain only some of the notifications added (failures only, for example).
+ * Whatever the policy, the list counts all successful and failed notifications added to it, as well as error-responses
+ * received by status code.  Failed notifications are also indexed as they are reported, so that counters can be queried
+ * in constant time and failures can be listed without scanning the whole list.</p>
+ * 
+ * <p>A {@link PushedNotificationLog} can be attached to stream the outcome of every notification added to a file,
+ * which provides a complete audit trail even if notifications are not retained in memory.</p>
+ * 
+ * <p>Internally, this list is backed by a circular buffer, so that adding a notification and evicting the oldest one
+ * both take constant time no matter how many notifications are retained.  Like a Vector, all methods are synchronized.</p>
  * 
  * @author Sylvain Pedneault
  */
-public class PushedNotifications extends Vector<PushedNotification> implements List<PushedNotification> {
+public class PushedNotifications extends AbstractList<PushedNotification> implements List<PushedNotification>, RandomAccess, Serializable {
 
 	private static final long serialVersionUID = 1L;
 
+	private static final Logger logger = Logger.getLogger(PushedNotifications.class);
+
+	private static final int DEFAULT_CAPACITY = 10;
+
 	private int maxRetained = 1000;
 
+	private RetentionPolicy retentionPolicy = RetentionPolicy.ALL;
+
+	/* Outcome counters for all notifications added, retained or not */
+	private long successfulCount = 0;
+	private long failedCount = 0;
+	private long[] statusCounts = new long[256];
+
+	/* Index of failed notifications retained in this list, in the order they were reported */
+	private PushedNotifications failures;
+	private boolean failuresIndexed = true;
+
+	private transient PushedNotificationLog resultLog;
+
+	/* Circular buffer holding retained notifications, from the oldest (at head) to the newest */
+	private PushedNotification[] elements;
+	private int head = 0;
+	private int count = 0;
+
 
 	/**
 	 * Construct an empty list of PushedNotification objects.
 	 */
 	public PushedNotifications() {
+		this(DEFAULT_CAPACITY);
 	}
 
 
@@ -31,7 +66,7 @@ public class PushedNotifications extends Vector<PushedNotification> implements L
 	 * @param capacity
 	 */
 	public PushedNotifications(int capacity) {
-		super(capacity);
+		this.elements = new PushedNotification[Math.max(capacity, 1)];
 	}
 
 
@@ -41,6 +76,7 @@ public class PushedNotifications extends Vector<PushedNotification> implements L
 	 * @param parent
 	 */
 	public PushedNotifications(PushedNotifications parent) {
+		this();
 		this.maxRetained = parent.getMaxRetained();
 	}
 
@@ -60,59 +96,415 @@ public class PushedNotifications extends Vector<PushedNotification> implements L
 
 
 	/**
-	 * Filter a list of pushed notifications and return only the ones that failed.
+	 * Return a list of the failed notifications retained in this list.
+	 * Failures are indexed as they are reported, so the cost of this method depends on the number of failures only.
 	 * 
 	 * @return a filtered list containing only notifications that were <b>not</b> successful
 	 */
-	public PushedNotifications getFailedNotifications() {
-		PushedNotifications filteredList = new PushedNotifications(this);
-		for (PushedNotification notification : this) {
-			if (!notification.isSuccessful()) {
-				filteredList.add(notification);
-			}
+	public synchronized PushedNotifications getFailedNotifications() {
+		if (!failuresIndexed) reindexFailures();
+		PushedNotifications filteredList = new PushedNotifications(failures != null ? failures.count : 0);
+		filteredList.maxRetained = maxRetained;
+		if (failures != null) {
+			for (int i = 0; i < failures.count; i++)
+				filteredList.add(failures.elements[failures.physicalIndex(i)]);
 		}
 		return filteredList;
 	}
 
 
 	@Override
-	public synchronized boolean add(PushedNotification notification) {
-		prepareAdd(1);
-		return super.add(notification);
+	public synchronized PushedNotification get(int index) {
+		checkIndex(index, count);
+		return elements[physicalIndex(index)];
 	}
 
 
 	@Override
+	public synchronized int size() {
+		return count;
+	}
+
+
+	/**
+	 * Count a notification and add it to the end of this list if the retention policy allows it.
+	 * 
+	 * @param notification a pushed notification
+	 * @return true if the notification was retained, false if it was only counted
+	 */
+	@Override
+	public synchronized boolean add(PushedNotification notification) {
+		if (notification == null) return store(notification);
+		boolean successful = notification.isSuccessful();
+		log(notification);
+		if (successful) {
+			successfulCount++;
+		} else {
+			failedCount++;
+			countStatus(notification);
+		}
+		boolean retain = successful ? retentionPolicy.isSuccessRetained(successfulCount) : retentionPolicy.isFailuresRetained();
+		if (notification.getRecorder() == null) {
+			/* The first list to record a notification is told if the notification fails later on */
+			notification.setRecorder(this);
+			notification.setRetained(retain);
+		}
+		if (!retain || !store(notification)) return false;
+		if (!successful) indexFailure(notification);
+		return true;
+	}
+
+
+	/**
+	 * Invoked when a notification recorded as successful by this list is reported as failed by Apple.
+	 * 
+	 * @param notification a notification that this list recorded
+	 */
+	synchronized void notificationFailed(PushedNotification notification) {
+		successfulCount--;
+		failedCount++;
+		countStatus(notification);
+		log(notification);
+		if (notification.isRetained()) {
+			indexFailure(notification);
+		} else if (retentionPolicy.isFailuresRetained()) {
+			notification.setRetained(true);
+			if (store(notification)) indexFailure(notification);
+		}
+	}
+
+
+	private void log(PushedNotification notification) {
+		if (resultLog == null) return;
+		try {
+			resultLog.record(notification);
+		} catch (IOException e) {
+			logger.error("Unable to record pushed notification in " + resultLog.getFile() + ": " + e.getMessage());
+		}
+	}
+
+
+	private void countStatus(PushedNotification notification) {
+		ResponsePacket response = notification.getResponse();
+		if (response != null) statusCounts[response.getStatus() & 0xFF]++;
+	}
+
+
+	private void indexFailure(PushedNotification notification) {
+		if (!failuresIndexed) return;
+		if (failures == null) failures = new PushedNotifications();
+		failures.maxRetained = Math.max(maxRetained, 0);
+		failures.store(notification);
+	}
+
+
+	/**
+	 * Keep the failure index in sync when a notification leaves this list.
+	 * 
+	 * @param notification a notification being removed from this list
+	 */
+	private void release(PushedNotification notification) {
+		if (notification == null) return;
+		if (notification.getRecorder() == this) notification.setRetained(false);
+		if (notification.isSuccessful() || failures == null) return;
+		if (failures.count > 0 && failures.elements[failures.head] == notification) failures.removeOldest();
+		else failuresIndexed = false;
+	}
+
+
+	private void reindexFailures() {
+		failures = null;
+		failuresIndexed = true;
+		for (int i = 0; i < count; i++) {
+			PushedNotification notification = elements[physicalIndex(i)];
+			if (notification != null && !notification.isSuccessful()) indexFailure(notification);
+		}
+	}
+
+
+	/**
+	 * Append a notification to the circular buffer, evicting the oldest one if maxRetained is reached.
+	 * 
+	 * @param notification a pushed notification
+	 * @return true if the notification was stored
+	 */
+	private boolean store(PushedNotification notification) {
+		if (maxRetained <= 0) return false;
+		if (count >= maxRetained) {
+			/* Overwrite the oldest notification instead of shifting the whole list */
+			if (elements.length != count) resize(count);
+			release(elements[head]);
+			elements[head] = notification;
+			head = physicalIndex(1);
+		} else {
+			ensureCapacity(count + 1);
+			elements[physicalIndex(count)] = notification;
+			count++;
+		}
+		modCount++;
+		return true;
+	}
+
+
+	/**
+	 * Add a notification to the end of this list (same as add).
+	 * 
+	 * @param notification a pushed notification
+	 */
 	public synchronized void addElement(PushedNotification notification) {
-		prepareAdd(1);
-		super.addElement(notification);
+		add(notification);
 	}
 
 
 	@Override
 	public synchronized boolean addAll(Collection<? extends PushedNotification> notifications) {
-		prepareAdd(notifications.size());
-		return super.addAll(notifications);
+		boolean modified = false;
+		for (PushedNotification notification : notifications)
+			modified |= add(notification);
+		return modified;
 	}
 
 
-	private void prepareAdd(int n) {
-		int size = size();
-		if (size + n > maxRetained) {
-			for (int i = 0; i < n; i++)
-				remove(0);
+	/**
+	 * Add all notifications retained by another list, and merge its counters into this list's counters.
+	 * Notifications are added as is, regardless of this list's retention policy.
+	 * 
+	 * @param notifications another list of pushed notifications
+	 */
+	public synchronized void merge(PushedNotifications notifications) {
+		synchronized (notifications) {
+			for (int i = 0; i < notifications.count; i++) {
+				PushedNotification notification = notifications.elements[notifications.physicalIndex(i)];
+				if (store(notification) && notification != null && !notification.isSuccessful()) indexFailure(notification);
+			}
+			successfulCount += notifications.successfulCount;
+			failedCount += notifications.failedCount;
+			for (int status = 0; status < statusCounts.length; status++)
+				statusCounts[status] += notifications.statusCounts[status];
 		}
 	}
 
 
+	/**
+	 * Combine the notifications retained by several lists (ex: one list per thread) into a new list, and merge their counters.
+	 * Every call copies all retained notifications (in bulk, once per list) and the failure index of each list, so that
+	 * the result is a consistent snapshot while the lists keep growing.  To follow outcomes repeatedly, sum the counters
+	 * of each list instead, which does not copy anything.
+	 * 
+	 * @param lists lists of pushed notifications
+	 * @return a new list retaining all notifications retained by the lists
+	 */
+	public static PushedNotifications combine(Collection<PushedNotifications> lists) {
+		return combine(lists, false);
+	}
+
+
+	/**
+	 * Combine the failed notifications retained by several lists (ex: one list per thread) into a new list.
+	 * Every call copies the retained failures, straight from the failure index of each list.
+	 * 
+	 * @param lists lists of pushed notifications
+	 * @return a new list retaining all failed notifications retained by the lists
+	 */
+	public static PushedNotifications combineFailures(Collection<PushedNotifications> lists) {
+		return combine(lists, true);
+	}
+
+
+	private static PushedNotifications combine(Collection<PushedNotifications> lists, boolean failuresOnly) {
+		PushedNotifications combined = new PushedNotifications();
+		combined.maxRetained = Integer.MAX_VALUE;
+		if (!failuresOnly) {
+			combined.failures = new PushedNotifications();
+			combined.failures.maxRetained = Integer.MAX_VALUE;
+		}
+		for (PushedNotifications list : lists) {
+			synchronized (list) {
+				if (!list.failuresIndexed) list.reindexFailures();
+				if (failuresOnly) {
+					if (list.failures == null) continue;
+					combined.append(list.failures);
+					for (int i = 0; i < list.failures.count; i++)
+						combined.countStatus(list.failures.elements[list.failures.physicalIndex(i)]);
+					combined.failedCount += list.failures.count;
+				} else {
+					combined.append(list);
+					if (list.failures != null) combined.failures.append(list.failures);
+					combined.successfulCount += list.successfulCount;
+					combined.failedCount += list.failedCount;
+					for (int status = 0; status < combined.statusCounts.length; status++)
+						combined.statusCounts[status] += list.statusCounts[status];
+				}
+			}
+		}
+		/* All notifications of a list of failures are failures, so the list is indexed only if asked for its failures */
+		combined.failuresIndexed = !failuresOnly;
+		combined.maxRetained = combined.count;
+		if (combined.failures != null) combined.failures.maxRetained = combined.count;
+		return combined;
+	}
+
+
+	/**
+	 * Copy all notifications retained by another list to the end of this list, which must never have evicted any notification.
+	 * 
+	 * @param notifications another list, locked by the caller
+	 */
+	private void append(PushedNotifications notifications) {
+		if (notifications.count == 0) return;
+		ensureCapacity(count + notifications.count);
+		notifications.copyTo(elements, count);
+		count += notifications.count;
+		modCount++;
+	}
+
+
+	@Override
+	public synchronized void add(int index, PushedNotification notification) {
+		checkIndex(index, count + 1);
+		if (maxRetained <= 0) return;
+		if (count >= maxRetained) {
+			removeOldest();
+			if (index > 0) index--;
+		}
+		failuresIndexed = false;
+		ensureCapacity(count + 1);
+		for (int i = count; i > index; i--)
+			elements[physicalIndex(i)] = elements[physicalIndex(i - 1)];
+		elements[physicalIndex(index)] = notification;
+		count++;
+		modCount++;
+	}
+
+
+	@Override
+	public synchronized PushedNotification set(int index, PushedNotification notification) {
+		checkIndex(index, count);
+		int i = physicalIndex(index);
+		PushedNotification previous = elements[i];
+		if (previous != null && previous.getRecorder() == this) previous.setRetained(false);
+		elements[i] = notification;
+		failuresIndexed = false;
+		return previous;
+	}
+
+
+	@Override
+	public synchronized PushedNotification remove(int index) {
+		checkIndex(index, count);
+		if (index == 0) return removeOldest();
+		PushedNotification removed = elements[physicalIndex(index)];
+		if (removed != null && removed.getRecorder() == this) removed.setRetained(false);
+		failuresIndexed = false;
+		for (int i = index; i < count - 1; i++)
+			elements[physicalIndex(i)] = elements[physicalIndex(i + 1)];
+		elements[physicalIndex(count - 1)] = null;
+		count--;
+		modCount++;
+		return removed;
+	}
+
+
+	@Override
+	public synchronized void clear() {
+		for (int i = 0; i < count; i++) {
+			PushedNotification notification = elements[physicalIndex(i)];
+			if (notification != null && notification.getRecorder() == this) notification.setRetained(false);
+		}
+		Arrays.fill(elements, null);
+		head = 0;
+		count = 0;
+		failures = null;
+		failuresIndexed = true;
+		modCount++;
+	}
+
+
+	@Override
+	public synchronized Object[] toArray() {
+		Object[] array = new Object[count];
+		copyTo(array);
+		return array;
+	}
+
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized <T> T[] toArray(T[] array) {
+		if (array.length < count) array = (T[]) java.lang.reflect.Array.newInstance(array.getClass().getComponentType(), count);
+		copyTo(array);
+		if (array.length > count) array[count] = null;
+		return array;
+	}
+
+
+	private void copyTo(Object[] array) {
+		copyTo(array, 0);
+	}
+
+
+	private void copyTo(Object[] array, int offset) {
+		int firstPart = Math.min(count, elements.length - head);
+		System.arraycopy(elements, head, array, offset, firstPart);
+		System.arraycopy(elements, 0, array, offset + firstPart, count - firstPart);
+	}
+
+
+	private PushedNotification removeOldest() {
+		PushedNotification removed = elements[head];
+		release(removed);
+		elements[head] = null;
+		head = physicalIndex(1);
+		count--;
+		modCount++;
+		return removed;
+	}
+
+
+	private int physicalIndex(int index) {
+		int i = head + index;
+		return i >= elements.length ? i - elements.length : i;
+	}
+
+
+	/**
+	 * Grow the circular buffer if needed, never beyond maxRetained.
+	 * 
+	 * @param minimumCapacity the number of elements that the buffer must be able to hold
+	 */
+	private void ensureCapacity(int minimumCapacity) {
+		if (minimumCapacity <= elements.length) return;
+		int newCapacity = (int) Math.min(Math.max((long) elements.length * 2, minimumCapacity), Math.max(maxRetained, minimumCapacity));
+		resize(newCapacity);
+	}
+
+
+	private void resize(int newCapacity) {
+		PushedNotification[] newElements = new PushedNotification[Math.max(newCapacity, 1)];
+		copyTo(newElements);
+		elements = newElements;
+		head = 0;
+	}
+
+
+	private static void checkIndex(int index, int limit) {
+		if (index < 0 || index >= limit) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + limit);
+	}
+
+
 	/**
 	 * Set the maximum number of objects that this list retains.
 	 * When this maximum is reached, older objects are removed from the list before new ones are added.
 	 * 
 	 * @param maxRetained the maxRetained value currently configured (default is 1000)
 	 */
-	public void setMaxRetained(int maxRetained) {
+	public synchronized void setMaxRetained(int maxRetained) {
 		this.maxRetained = maxRetained;
+		if (count > Math.max(maxRetained, 0)) {
+			while (count > Math.max(maxRetained, 0))
+				removeOldest();
+			resize(count);
+		}
 	}
 
 
@@ -124,4 +516,71 @@ public class PushedNotifications extends Vector<PushedNotification> implements L
 		return maxRetained;
 	}
 
+
+	/**
+	 * Set the policy deciding which notifications this list retains.
+	 * Notifications already in the list are not affected.
+	 * 
+	 * @param retentionPolicy a retention policy (default is RetentionPolicy.ALL)
+	 */
+	public synchronized void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+		this.retentionPolicy = retentionPolicy != null ? retentionPolicy : RetentionPolicy.ALL;
+	}
+
+
+	/**
+	 * Get the policy deciding which notifications this list retains.
+	 * @return a retention policy
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy;
+	}
+
+
+	/**
+	 * Attach a log to which the outcome of every notification added to this list is appended,
+	 * whether or not the notification is retained in this list.
+	 * 
+	 * @param resultLog a pushed notification log, or null to stop logging
+	 */
+	public synchronized void setResultLog(PushedNotificationLog resultLog) {
+		this.resultLog = resultLog;
+	}
+
+
+	public PushedNotificationLog getResultLog() {
+		return resultLog;
+	}
+
+
+	/**
+	 * Get the number of successful notifications added to this list, including those that were not retained.
+	 * @return a number of notifications
+	 */
+	public synchronized long getSuccessfulCount() {
+		return successfulCount;
+	}
+
+
+	/**
+	 * Get the number of failed notifications added to this list, including those that were not retained.
+	 * @return a number of notifications
+	 */
+	public synchronized long getFailedCount() {
+		return failedCount;
+	}
+
+
+	/**
+	 * Get the number of error-response packets received from Apple with a given status code,
+	 * for notifications added to this list (retained or not).
+	 * 
+	 * @param status a status code (see {@link ResponsePacket#getMessage()} for the list of known codes)
+	 * @return a number of notifications
+	 */
+	public synchronized long getStatusCount(int status) {
+		if (status < 0 || status >= statusCounts.length) return 0;
+		return statusCounts[status];
+	}
+
 }
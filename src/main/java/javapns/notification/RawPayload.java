@@ -0,0 +1,230 @@
+package javapns.notification;
+
+import java.io.*;
+import java.util.*;
+
+import javapns.notification.exceptions.*;
+
+import org.json.*;
+
+/**
+ * <p>A payload made of JSON bytes which were already encoded in UTF-8.</p>
+ * 
+ * <p>Payloads produced by other services can be pushed as is:  unlike PushNotificationPayload.fromJSON,
+ * the JSON is neither parsed into a JSONObject nor serialized back, and its bytes go straight into
+ * the notification.  The JSON can optionally be validated once with {@link #validate()}; otherwise
+ * only its size is checked when it is pushed.</p>
+ * 
+ * <p>The JSON object is only parsed if someone asks for it (see {@link #getPayload()}), and raw payloads cannot be modified.
+ * Payloads rendered by a {@link PayloadTemplate} are raw payloads, and so are snapshots returned by {@link Payload#freeze()},
+ * which also reject changes to their expiry and character encoding.</p>
+ */
+public class RawPayload extends Payload {
+
+	/* Maximum size allowed by Apple for regular notifications */
+	private static final int DEFAULT_MAXIMUM_PAYLOAD_SIZE = 256;
+
+	private final byte[] bytes;
+	private final int maximumPayloadSize;
+	private final boolean frozen;
+	private JSONObject parsed;
+
+
+	/**
+	 * Wrap a JSON string for regular notifications (256 bytes maximum).
+	 * 
+	 * @param rawJSON a JSON-formatted string (ex: {"aps":{"alert":"Hello World!"}} )
+	 */
+	public RawPayload(String rawJSON) {
+		this(toBytes(rawJSON), DEFAULT_MAXIMUM_PAYLOAD_SIZE);
+	}
+
+
+	/**
+	 * Wrap JSON bytes for regular notifications (256 bytes maximum).
+	 * The array is not copied, and must not be modified afterwards.
+	 * 
+	 * @param json a JSON text encoded in UTF-8
+	 */
+	public RawPayload(byte[] json) {
+		this(json, DEFAULT_MAXIMUM_PAYLOAD_SIZE);
+	}
+
+
+	/**
+	 * Wrap JSON bytes.
+	 * The array is not copied, and must not be modified afterwards.
+	 * 
+	 * @param json a JSON text encoded in UTF-8
+	 * @param maximumPayloadSize the maximum size of this payload, in bytes
+	 */
+	public RawPayload(byte[] json, int maximumPayloadSize) {
+		super((JSONObject) null);
+		this.bytes = json;
+		this.maximumPayloadSize = maximumPayloadSize;
+		this.frozen = false;
+	}
+
+
+	/**
+	 * Create a frozen snapshot of a payload.
+	 * 
+	 * @param payload the payload to freeze
+	 * @param bytes the payload's encoded bytes, which no one else references
+	 */
+	RawPayload(Payload payload, byte[] bytes) {
+		super((JSONObject) null);
+		this.bytes = bytes;
+		this.maximumPayloadSize = payload.getMaximumPayloadSize();
+		super.setExpiry(payload.getExpiry());
+		super.setCharacterEncoding(payload.getCharacterEncoding());
+		this.frozen = true;
+	}
+
+
+	/**
+	 * Make sure this payload is a well-formed JSON object that does not exceed the maximum payload size.
+	 * 
+	 * @return this payload
+	 * @throws JSONException thrown if the bytes are not a well-formed JSON object
+	 * @throws PayloadMaxSizeExceededException thrown if the payload exceeds the maximum payload size
+	 */
+	public RawPayload validate() throws JSONException, PayloadMaxSizeExceededException {
+		if (bytes.length > maximumPayloadSize) throw new PayloadMaxSizeExceededException(maximumPayloadSize, bytes.length);
+		JSONTokener tokener = new JSONTokener(toString());
+		JSONObject object = new JSONObject(tokener);
+		if (tokener.nextClean() != 0) throw tokener.syntaxError("Unexpected text after the JSON object");
+		synchronized (this) {
+			parsed = object;
+		}
+		return this;
+	}
+
+
+	/**
+	 * Get this payload parsed as a JSONObject.
+	 * The JSON is parsed the first time this method is called, and changes made to the returned object are not reflected in this payload.
+	 * Since frozen payloads are shared between threads, each call parses a new object for them.
+	 * 
+	 * @return a JSONObject (empty if the bytes are not a well-formed JSON object)
+	 */
+	@Override
+	public synchronized JSONObject getPayload() {
+		if (parsed == null || frozen) {
+			try {
+				parsed = new JSONObject(toString());
+			} catch (JSONException e) {
+				parsed = new JSONObject();
+			}
+		}
+		return parsed;
+	}
+
+
+	/**
+	 * Get this payload's bytes, as provided.  The array returned is not a copy, and must not be modified.
+	 */
+	@Override
+	public byte[] getPayloadAsBytes() throws Exception {
+		if (bytes.length > maximumPayloadSize) throw new PayloadMaxSizeExceededException(maximumPayloadSize, bytes.length);
+		return bytes;
+	}
+
+
+	@Override
+	public Payload freeze() throws PayloadMaxSizeExceededException {
+		if (frozen) return this;
+		if (bytes.length > maximumPayloadSize) throw new PayloadMaxSizeExceededException(maximumPayloadSize, bytes.length);
+		return new RawPayload(this, bytes);
+	}
+
+
+	@Override
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+
+	@Override
+	public void setExpiry(int seconds) {
+		if (frozen) throw new UnsupportedOperationException("Frozen payloads cannot be modified");
+		super.setExpiry(seconds);
+	}
+
+
+	@Override
+	public void setCharacterEncoding(String characterEncoding) {
+		if (frozen) throw new UnsupportedOperationException("Frozen payloads cannot be modified");
+		super.setCharacterEncoding(characterEncoding);
+	}
+
+
+	@Override
+	protected void setPreSendConfiguration(int preSendConfiguration) {
+		if (frozen) throw new UnsupportedOperationException("Frozen payloads cannot be modified");
+		super.setPreSendConfiguration(preSendConfiguration);
+	}
+
+
+	@Override
+	public int getPayloadSize() throws Exception {
+		return bytes.length;
+	}
+
+
+	@Override
+	public int getMaximumPayloadSize() {
+		return maximumPayloadSize;
+	}
+
+
+	@Override
+	void verifyPayloadIsNotEmpty() {
+		if (getPreSendConfiguration() != 0) return;
+		if (bytes.length == 2 && bytes[0] == '{' && bytes[1] == '}') throw new IllegalArgumentException("Payload cannot be empty");
+	}
+
+
+	@Override
+	public String toString() {
+		try {
+			return new String(bytes, getCharacterEncoding());
+		} catch (UnsupportedEncodingException e) {
+			return new String(bytes);
+		}
+	}
+
+
+	private static byte[] toBytes(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return string.getBytes();
+		}
+	}
+
+
+	@Override
+	public void addCustomDictionary(String name, String value) throws JSONException {
+		throw new UnsupportedOperationException("Raw payloads cannot be modified");
+	}
+
+
+	@Override
+	public void addCustomDictionary(String name, int value) throws JSONException {
+		throw new UnsupportedOperationException("Raw payloads cannot be modified");
+	}
+
+
+	@Override
+	public void addCustomDictionary(String name, List values) throws JSONException {
+		throw new UnsupportedOperationException("Raw payloads cannot be modified");
+	}
+
+
+	@Override
+	public void addCustomDictionary(String name, Object value) throws JSONException {
+		throw new UnsupportedOperationException("Raw payloads cannot be modified");
+	}
+
+}
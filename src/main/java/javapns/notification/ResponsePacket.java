@@ -29,6 +29,7 @@ public class ResponsePacket {
 			notification = notificationManager.getPushedNotifications().get(identifier);
 			if (notification != null) {
 				notification.setResponse(this);
+				notificationManager.errorResponseReceived(notification);
 			}
 		} catch (Exception e) {
 		}
@@ -0,0 +1,101 @@
+package javapns.notification;
+
+/**
+ * <p>A policy deciding which PushedNotification objects a {@link PushedNotifications} list actually retains.</p>
+ * 
+ * <p>Every PushedNotification holds its payload, its device and any exception that occurred,
+ * so retaining one result object per device can take a lot of memory when pushing to millions
+ * of devices.  Regardless of the policy, a list always counts every notification added to it,
+ * so that the number of successful and failed notifications remains available.</p>
+ * 
+ * <ul>
+ * <li>{@link #ALL} retains every notification (default)</li>
+ * <li>{@link #FAILURES_ONLY} retains failed notifications only</li>
+ * <li>{@link #failuresAndSampledSuccesses(double)} retains failed notifications and a fraction of successful ones</li>
+ * <li>{@link #COUNTERS_ONLY} retains no notification at all, only counters</li>
+ * </ul>
+ * 
+ * <p>Since Apple reports errors asynchronously, a successful notification that was not retained
+ * is added to the list later if an error-response is received for it and failures are retained.</p>
+ */
+public class RetentionPolicy {
+
+	/**
+	 * Retain all notifications, successful or not.
+	 */
+	public static final RetentionPolicy ALL = new RetentionPolicy("all", true, 1.0);
+
+	/**
+	 * Retain failed notifications only.
+	 */
+	public static final RetentionPolicy FAILURES_ONLY = new RetentionPolicy("failures only", true, 0.0);
+
+	/**
+	 * Retain no notification at all, only count them.
+	 */
+	public static final RetentionPolicy COUNTERS_ONLY = new RetentionPolicy("counters only", false, 0.0);
+
+	private final String name;
+	private final boolean failuresRetained;
+	private final double successSamplingRate;
+
+
+	private RetentionPolicy(String name, boolean failuresRetained, double successSamplingRate) {
+		this.name = name;
+		this.failuresRetained = failuresRetained;
+		this.successSamplingRate = successSamplingRate;
+	}
+
+
+	/**
+	 * Create a policy which retains all failed notifications as well as a fraction of successful ones.
+	 * Successful notifications are sampled evenly (ex: a rate of 0.01 retains one successful notification out of every hundred).
+	 *
+	 * @param successSamplingRate the fraction of successful notifications to retain, between 0.0 and 1.0
+	 * @return a retention policy
+	 */
+	public static RetentionPolicy failuresAndSampledSuccesses(double successSamplingRate) {
+		if (successSamplingRate < 0 || successSamplingRate > 1) throw new IllegalArgumentException("Sampling rate must be between 0.0 and 1.0");
+		return new RetentionPolicy("failures and " + successSamplingRate + " of successes", true, successSamplingRate);
+	}
+
+
+	/**
+	 * Indicates if failed notifications are retained.
+	 *
+	 * @return true if failed notifications are retained, false otherwise
+	 */
+	public boolean isFailuresRetained() {
+		return failuresRetained;
+	}
+
+
+	/**
+	 * Get the fraction of successful notifications that are retained.
+	 *
+	 * @return a number between 0.0 (none) and 1.0 (all)
+	 */
+	public double getSuccessSamplingRate() {
+		return successSamplingRate;
+	}
+
+
+	/**
+	 * Determine if a successful notification should be retained.
+	 *
+	 * @param successfulCount the number of successful notifications counted so far, including this one
+	 * @return true if the notification should be retained
+	 */
+	boolean isSuccessRetained(long successfulCount) {
+		if (successSamplingRate >= 1) return true;
+		if (successSamplingRate <= 0) return false;
+		return (long) (successfulCount * successSamplingRate) != (long) ((successfulCount - 1) * successSamplingRate);
+	}
+
+
+	@Override
+	public String toString() {
+		return "Retention policy: " + name;
+	}
+
+}
@@ -0,0 +1,510 @@
+package javapns.notification;
+
+import java.io.*;
+import java.util.*;
+
+import javapns.notification.exceptions.*;
+
+import org.json.*;
+
+/**
+ * <p>A push notification payload written directly as UTF-8 JSON, without a JSONObject tree.</p>
+ * 
+ * <p>This class offers the same methods as {@link PushNotificationPayload} (addAlert, addBadge, addSound,
+ * addCustomDictionary, etc.), but each property is encoded into a byte buffer as soon as it is added,
+ * and the exact size of the payload is tracked as it goes.  Getting the payload's bytes does not
+ * go through a String, and getting its size does not serialize anything.</p>
+ * 
+ * <p>Pushed notifications keep a reference to their payload, which is encoded again if a notification has to be
+ * resent after Apple reports an error.  A payload must therefore not be cleared or modified once it has been pushed:
+ * build a new instance for each notification, or push a {@link #freeze() frozen} snapshot of it.</p>
+ * 
+ * <p>Since this payload has no JSONObject tree, getPayload() returns a new copy parsed from its bytes each time it is called.</p>
+ */
+public class StreamingPayload extends Payload {
+
+	/* Maximum size allowed by Apple for regular notifications */
+	private static final int DEFAULT_MAXIMUM_PAYLOAD_SIZE = 256;
+
+	private static final byte[] APS_START = { '{', '"', 'a', 'p', 's', '"', ':', '{' };
+	private static final byte[] ALERT_START = { '"', 'a', 'l', 'e', 'r', 't', '"', ':', '{' };
+
+	private final int maximumPayloadSize;
+
+	private final Dictionary aps = new Dictionary();
+	private final Dictionary alert = new Dictionary();
+	private final Dictionary root = new Dictionary();
+	private boolean customAlert = false;
+	private boolean simpleAlert = false;
+
+
+	/**
+	 * Create an empty payload for regular notifications (256 bytes maximum).
+	 */
+	public StreamingPayload() {
+		this(DEFAULT_MAXIMUM_PAYLOAD_SIZE);
+	}
+
+
+	/**
+	 * Create an empty payload.
+	 * 
+	 * @param maximumPayloadSize the maximum size of this payload, in bytes
+	 */
+	public StreamingPayload(int maximumPayloadSize) {
+		super((JSONObject) null);
+		this.maximumPayloadSize = maximumPayloadSize;
+	}
+
+
+	/**
+	 * Remove all properties, keeping buffers.  A payload must not be cleared once it has been pushed.
+	 */
+	public void clear() {
+		aps.clear();
+		alert.clear();
+		root.clear();
+		customAlert = false;
+		simpleAlert = false;
+	}
+
+
+	/**
+	 * Add a badge.
+	 * 
+	 * @param badge a badge number
+	 * @throws JSONException
+	 */
+	public void addBadge(int badge) throws JSONException {
+		put(aps, "badge", badge);
+	}
+
+
+	/**
+	 * Add a sound.
+	 * 
+	 * @param sound the name of a sound
+	 * @throws JSONException
+	 */
+	public void addSound(String sound) throws JSONException {
+		if (sound != null) put(aps, "sound", sound);
+	}
+
+
+	/**
+	 * Add a simple alert message.
+	 * Note: you cannot add a simple and a custom alert in the same payload.
+	 * 
+	 * @param alertMessage the alert's message, or null to remove the simple alert
+	 * @throws JSONException
+	 */
+	public void addAlert(String alertMessage) throws JSONException {
+		if (customAlert) throw new PayloadAlertAlreadyExistsException("A custom alert was already added to this payload");
+		put(aps, "alert", alertMessage);
+		simpleAlert = alertMessage != null;
+	}
+
+
+	public void addCustomAlertTitle(String title) throws JSONException {
+		putCustomAlert("title", title);
+	}
+
+
+	/**
+	 * Create a custom alert (if none exist) and add a body to the custom alert.
+	 * 
+	 * @param body the body of the alert
+	 * @throws JSONException if the custom alert cannot be added because a simple alert already exists
+	 */
+	public void addCustomAlertBody(String body) throws JSONException {
+		putCustomAlert("body", body);
+	}
+
+
+	/**
+	 * Create a custom alert (if none exist) and add a custom subtitle.
+	 * 
+	 * @param subtitle the subtitle of the alert
+	 * @throws JSONException
+	 */
+	public void addCustomAlertSubtitle(String subtitle) throws JSONException {
+		putCustomAlert("subtitle", subtitle);
+	}
+
+
+	/**
+	 * Create a custom alert (if none exist) and add a title-loc-key parameter.
+	 * 
+	 * @param titleLocKey
+	 * @throws JSONException
+	 */
+	public void addCustomAlertTitleLocKey(String titleLocKey) throws JSONException {
+		putCustomAlert("title-loc-key", titleLocKey);
+	}
+
+
+	/**
+	 * Create a custom alert (if none exist) and add sub-parameters for the title-loc-key parameter.
+	 * 
+	 * @param args
+	 * @throws JSONException
+	 */
+	public void addCustomAlertTitleLocArgs(List args) throws JSONException {
+		putCustomAlert("title-loc-args", args != null && !args.isEmpty() ? args : new JSONNull());
+	}
+
+
+	/**
+	 * Create a custom alert (if none exist) and add a custom text for the right button of the popup.
+	 * 
+	 * @param actionLocKey the title of the alert's right button, or null to remove the button
+	 * @throws JSONException if the custom alert cannot be added because a simple alert already exists
+	 */
+	public void addCustomAlertActionLocKey(String actionLocKey) throws JSONException {
+		putCustomAlert("action-loc-key", actionLocKey != null ? actionLocKey : new JSONNull());
+	}
+
+
+	/**
+	 * Create a custom alert (if none exist) and add a loc-key parameter.
+	 * 
+	 * @param locKey
+	 * @throws JSONException if the custom alert cannot be added because a simple alert already exists
+	 */
+	public void addCustomAlertLocKey(String locKey) throws JSONException {
+		putCustomAlert("loc-key", locKey);
+	}
+
+
+	/**
+	 * Create a custom alert (if none exist) and add sub-parameters for the loc-key parameter.
+	 * 
+	 * @param args
+	 * @throws JSONException if the custom alert cannot be added because a simple alert already exists
+	 */
+	public void addCustomAlertLocArgs(List args) throws JSONException {
+		putCustomAlert("loc-args", args);
+	}
+
+
+	/**
+	 * Create a custom alert (if none exist) and add a launch image.
+	 * 
+	 * @param launchImage the launch image
+	 * @throws JSONException
+	 */
+	public void addCustomAlertLaunchImage(String launchImage) throws JSONException {
+		putCustomAlert("launch-image", launchImage);
+	}
+
+
+	private void putCustomAlert(String name, Object value) throws JSONException {
+		if (simpleAlert) throw new PayloadAlertAlreadyExistsException("A simple alert was already added to this payload");
+		customAlert = true;
+		put(alert, name, value);
+	}
+
+
+	/**
+	 * Sets the content available.
+	 * 
+	 * @param available
+	 * @throws JSONException
+	 */
+	public void setContentAvailable(boolean available) throws JSONException {
+		if (available) put(aps, "content-available", 1);
+		else remove(aps, "content-available");
+	}
+
+
+	/**
+	 * Add a category.
+	 * 
+	 * @param category the category of a message
+	 * @throws JSONException
+	 */
+	public void addCategory(String category) throws JSONException {
+		if (category != null) put(aps, "category", category);
+	}
+
+
+	/**
+	 * Sets the mutable content.
+	 * 
+	 * @param mutable
+	 * @throws JSONException
+	 */
+	public void setMutableContent(boolean mutable) throws JSONException {
+		if (mutable) put(aps, "mutable-content", 1);
+		else remove(aps, "mutable-content");
+	}
+
+
+	@Override
+	public void addCustomDictionary(String name, String value) throws JSONException {
+		putCustomDictionary(name, value);
+	}
+
+
+	@Override
+	public void addCustomDictionary(String name, int value) throws JSONException {
+		putCustomDictionary(name, value);
+	}
+
+
+	@Override
+	public void addCustomDictionary(String name, List values) throws JSONException {
+		putCustomDictionary(name, values);
+	}
+
+
+	@Override
+	public void addCustomDictionary(String name, Object value) throws JSONException {
+		putCustomDictionary(name, value);
+	}
+
+
+	private void putCustomDictionary(String name, Object value) throws JSONException {
+		if ("aps".equals(name)) throw new JSONException("The aps dictionary cannot be replaced by a custom dictionary");
+		put(root, name, value);
+	}
+
+
+	/**
+	 * Encode a property into a dictionary, checking the exact resulting size first if requested.
+	 */
+	private void put(Dictionary dictionary, String name, Object value) throws JSONException {
+		if (name == null) throw new JSONException("Null key.");
+		if (value == null) {
+			remove(dictionary, name);
+			return;
+		}
+		Object encoded = value instanceof String ? value : toBytes(JSONEscaper.valueToString(value));
+		if (isPayloadSizeEstimatedWhenAdding()) {
+			int size = getPayloadSize() + dictionary.growth(name, encoded);
+			if (size > maximumPayloadSize) throw new PayloadMaxSizeProbablyExceededException(maximumPayloadSize, size);
+		}
+		dictionary.put(name, encoded);
+	}
+
+
+	private void remove(Dictionary dictionary, String name) {
+		dictionary.remove(name);
+	}
+
+
+	/**
+	 * Get the exact number of bytes that the payload will occupy when streamed.
+	 * 
+	 * @return a number of bytes
+	 */
+	@Override
+	public int getPayloadSize() {
+		int size = APS_START.length + aps.length + 1 + 1;
+		if (customAlert) size += (aps.length > 0 ? 1 : 0) + ALERT_START.length + alert.length + 1;
+		if (root.length > 0) size += 1 + root.length;
+		return size;
+	}
+
+
+	/**
+	 * Write this payload into a buffer.
+	 * The buffer must have room for getPayloadSize() bytes after the offset.
+	 * 
+	 * @param out the buffer to write to
+	 * @param offset the position at which to start writing
+	 * @return the position following the last byte written
+	 */
+	public int writeTo(byte[] out, int offset) {
+		int pos = offset;
+		System.arraycopy(APS_START, 0, out, pos, APS_START.length);
+		pos += APS_START.length;
+		pos = aps.writeTo(out, pos);
+		if (customAlert) {
+			if (aps.length > 0) out[pos++] = ',';
+			System.arraycopy(ALERT_START, 0, out, pos, ALERT_START.length);
+			pos += ALERT_START.length;
+			pos = alert.writeTo(out, pos);
+			out[pos++] = '}';
+		}
+		out[pos++] = '}';
+		if (root.length > 0) {
+			out[pos++] = ',';
+			pos = root.writeTo(out, pos);
+		}
+		out[pos++] = '}';
+		return pos;
+	}
+
+
+	@Override
+	public byte[] getPayloadAsBytes() throws Exception {
+		int size = getPayloadSize();
+		if (size > maximumPayloadSize) throw new PayloadMaxSizeExceededException(maximumPayloadSize, size);
+		byte[] bytes = new byte[size];
+		writeTo(bytes, 0);
+		return bytes;
+	}
+
+
+	@Override
+	public int getMaximumPayloadSize() {
+		return maximumPayloadSize;
+	}
+
+
+	@Override
+	public String getCharacterEncoding() {
+		return "UTF-8";
+	}
+
+
+	@Override
+	void verifyPayloadIsNotEmpty() {
+		if (getPreSendConfiguration() != 0) return;
+		if (aps.length == 0 && !customAlert && root.length == 0) throw new IllegalArgumentException("Payload cannot be empty");
+	}
+
+
+	/**
+	 * Get a copy of this payload parsed as a JSONObject.
+	 * A new copy is parsed each time, so changes made to the returned object are neither reflected
+	 * in this payload nor in later calls.
+	 * 
+	 * @return a JSONObject
+	 */
+	@Override
+	public JSONObject getPayload() {
+		try {
+			return new JSONObject(toString());
+		} catch (JSONException e) {
+			return new JSONObject();
+		}
+	}
+
+
+	@Override
+	public String toString() {
+		byte[] bytes = new byte[getPayloadSize()];
+		writeTo(bytes, 0);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return new String(bytes);
+		}
+	}
+
+
+	private static byte[] toBytes(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return string.getBytes();
+		}
+	}
+
+
+	/**
+	 * The encoded members of a JSON dictionary (without braces), separated by commas in a growable buffer.
+	 * Values are either strings, which are escaped while being written, or already encoded bytes.
+	 */
+	private static class Dictionary {
+
+		private byte[] buffer = new byte[64];
+		private int length = 0;
+
+		/* Member names, and the offset following each member in the buffer */
+		private final List<String> names = new ArrayList<String>();
+		private int[] ends = new int[8];
+
+
+		void put(String name, Object value) {
+			remove(name);
+			int separator = names.isEmpty() ? 0 : 1;
+			int needed = length + separator + entryLength(name, value);
+			if (needed > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+			int pos = length;
+			if (separator > 0) buffer[pos++] = ',';
+			buffer[pos++] = '"';
+			pos = JSONEscaper.writeEscaped(name, (char) 0, buffer, pos);
+			buffer[pos++] = '"';
+			buffer[pos++] = ':';
+			if (value instanceof String) {
+				buffer[pos++] = '"';
+				pos = JSONEscaper.writeEscaped((String) value, (char) 0, buffer, pos);
+				buffer[pos++] = '"';
+			} else {
+				byte[] bytes = (byte[]) value;
+				System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+				pos += bytes.length;
+			}
+			length = pos;
+			if (names.size() == ends.length) ends = Arrays.copyOf(ends, ends.length * 2);
+			ends[names.size()] = length;
+			names.add(name);
+		}
+
+
+		/**
+		 * Compute by how many bytes this dictionary would grow (or shrink) if a member was put in it.
+		 */
+		int growth(String name, Object value) {
+			int growth = entryLength(name, value);
+			int index = names.indexOf(name);
+			if (index < 0) return growth + (names.isEmpty() ? 0 : 1);
+			return growth - (ends[index] - start(index));
+		}
+
+
+		void remove(String name) {
+			int index = names.indexOf(name);
+			if (index < 0) return;
+			int from;
+			int to;
+			if (names.size() == 1) {
+				from = 0;
+				to = length;
+			} else if (index < names.size() - 1) {
+				/* Remove the member and the comma following it */
+				from = start(index);
+				to = ends[index] + 1;
+			} else {
+				/* Remove the last member and the comma preceding it */
+				from = ends[index - 1];
+				to = ends[index];
+			}
+			int removed = to - from;
+			System.arraycopy(buffer, to, buffer, from, length - to);
+			length -= removed;
+			for (int i = index + 1; i < names.size(); i++)
+				ends[i - 1] = ends[i] - removed;
+			names.remove(index);
+		}
+
+
+		int writeTo(byte[] out, int offset) {
+			System.arraycopy(buffer, 0, out, offset, length);
+			return offset + length;
+		}
+
+
+		void clear() {
+			names.clear();
+			length = 0;
+		}
+
+
+		private int start(int index) {
+			return index == 0 ? 0 : ends[index - 1] + 1;
+		}
+
+
+		private static int entryLength(String name, Object value) {
+			int length = JSONEscaper.escapedLength(name, (char) 0) + 3;
+			if (value instanceof String) length += JSONEscaper.escapedLength((String) value, (char) 0) + 2;
+			else length += ((byte[]) value).length;
+			return length;
+		}
+	}
+
+}
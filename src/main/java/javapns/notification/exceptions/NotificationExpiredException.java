@@ -0,0 +1,37 @@
+package javapns.notification.exceptions;
+
+/**
+ * Thrown when a queued notification expired before it could be pushed, and was therefore dropped without being sent.
+ */
+@SuppressWarnings("serial")
+public class NotificationExpiredException extends Exception {
+
+	private int expiry;
+	private long timeInQueue;
+
+
+	public NotificationExpiredException(int expiry, long timeInQueue) {
+		super(String.format("Notification expired after waiting %d ms in queue (expiry: %d seconds)", timeInQueue, expiry));
+		this.expiry = expiry;
+		this.timeInQueue = timeInQueue;
+	}
+
+
+	/**
+	 * Get the number of seconds after which the notification was set to expire.
+	 * @return a number of seconds
+	 */
+	public int getExpiry() {
+		return expiry;
+	}
+
+
+	/**
+	 * Get the time that the notification spent waiting in a queue.
+	 * @return a number of milliseconds
+	 */
+	public long getTimeInQueue() {
+		return timeInQueue;
+	}
+
+}
@@ -0,0 +1,31 @@
+package javapns.notification.transmission;
+
+import javapns.notification.*;
+
+/**
+ * A push queue with a limited capacity, which lets a streaming source propagate backpressure instead of blocking.
+ * 
+ * <p>Both {@link NotificationThread} and {@link NotificationThreads} implement this interface.
+ * Queues returned by {@link javapns.Push#queue(Object, String, boolean, int)} can be cast to it.</p>
+ */
+public interface BoundedPushQueue extends PushQueue {
+
+	/**
+	 * Queue a message for delivery only if the queue can absorb it right away.
+	 * Unlike add(..), this method never waits for room to become available.
+	 * This method has no effect if the underlying notification thread is not in QUEUE mode.
+	 * @param message a payload/device pair
+	 * @return true if the message was queued, false if the queue is currently full
+	 * @throws IllegalArgumentException thrown if a journal is attached and the message has no payload or no device token
+	 */
+	public boolean offer(PayloadPerDevice message);
+
+
+	/**
+	 * Get the number of messages that can currently be queued without waiting.
+	 * A streaming source should not feed more than this number of messages before checking again.
+	 * @return a number of messages (Integer.MAX_VALUE if the queue is unbounded)
+	 */
+	public int getRemainingCapacity();
+
+}
@@ -1,11 +1,13 @@
 package javapns.notification.transmission;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import javapns.communication.exceptions.*;
 import javapns.devices.*;
 import javapns.devices.exceptions.*;
 import javapns.notification.*;
+import javapns.notification.exceptions.*;
 
 /**
  * <h1>Pushes payloads asynchroneously using a dedicated thread.</h1>
@@ -19,6 +21,13 @@ import javapns.notification.*;
  * This is intended to avoid an undocumented notification-per-connection limit observed 
  * occasionnally with Apple servers.</p>
  * 
+ * <p>In QUEUE mode, messages which waited in the queue longer than their payload's expiry are not pushed.
+ * They are recorded as failed notifications carrying a {@link javapns.notification.exceptions.NotificationExpiredException NotificationExpiredException},
+ * so that a backlog built up during an outage clears faster.</p>
+ * 
+ * <p>In QUEUE mode, a message with a collapse key supersedes any message with the same collapse key still waiting
+ * in the queue for the same device.  Superseded messages are skipped when they reach the head of the queue.</p>
+ * 
  * <p>Usage (LIST): once a NotificationThread is created using any LIST-mode constructor, invoke {@code start()} to push the payload to all devices in a separate thread.</p>
  * 
  * <p>Usage (QUEUE): once a NotificationThread is created using any QUEUE-mode constructor, invoke {@code start()} to open a connection and wait for notifications to be queued.</p>
@@ -27,7 +36,7 @@ import javapns.notification.*;
  * @see NotificationThreads
  * @author Sylvain Pedneault
  */
-public class NotificationThread implements Runnable, PushQueue {
+public class NotificationThread implements Runnable, BoundedPushQueue {
 
 	/**
 	 * Working modes supported by Notification Threads.
@@ -63,6 +72,13 @@ public class NotificationThread implements Runnable, PushQueue {
 	private PushedNotifications notifications = new PushedNotifications();
 	private MODE mode = MODE.LIST;
 	private boolean busy = false;
+	private int queueCapacity = Integer.MAX_VALUE;
+	private PushQueueJournal journal;
+	private long expirySweepInterval = 0;
+	private long lastExpirySweep = System.currentTimeMillis();
+
+	/* Latest queued message for each device and collapse key (shared by all threads of a NotificationThreads pool) */
+	private ConcurrentMap<String, PayloadPerDevice> collapseIndex = new ConcurrentHashMap<String, PayloadPerDevice>();
 
 	/* Single payload to multiple devices */
 	private Payload payload;
@@ -71,8 +87,15 @@ public class NotificationThread implements Runnable, PushQueue {
 	/* Individual payload per device */
 	private List<PayloadPerDevice> messages = new Vector<PayloadPerDevice>();
 
+	/* QUEUE mode only */
+	private PriorityLanes queue = new PriorityLanes();
+
 	private Exception exception;
 
+	/* Released once the thread's first connection is opened, or failed to open */
+	private final CountDownLatch connectionAttempted = new CountDownLatch(1);
+	private volatile boolean connected = false;
+
 
 	/**
 	 * Create a grouped thread in LIST mode for pushing a single payload to a list of devices
@@ -212,20 +235,28 @@ public class NotificationThread implements Runnable, PushQueue {
 		busy = true;
 		try {
 			int total = size();
+			/* A payload object pushed to many devices shares a single encoded copy, while pushed notifications keep the original payloads */
+			Payload snapshot = devices != null ? share(this.payload) : null;
+			PayloadInterner interner = devices != null ? null : new PayloadInterner();
 			notificationManager.initializeConnection(server);
+			connected = true;
+			connectionAttempted.countDown();
 			for (int i = 0; i < total; i++) {
 				Device device;
 				Payload payload;
+				Payload transmitted;
 				if (devices != null) {
 					device = devices.get(i);
 					payload = this.payload;
+					transmitted = snapshot;
 				} else {
 					PayloadPerDevice message = messages.get(i);
 					device = message.getDevice();
 					payload = message.getPayload();
+					transmitted = interner.intern(payload);
 				}
 				int message = newMessageIdentifier();
-				PushedNotification notification = notificationManager.sendNotification(device, payload, false, message);
+				PushedNotification notification = notificationManager.sendNotification(device, payload, transmitted, false, message);
 				notifications.add(notification);
 				try {
 					if (sleepBetweenNotifications > 0) Thread.sleep(sleepBetweenNotifications);
@@ -245,6 +276,8 @@ public class NotificationThread implements Runnable, PushQueue {
 			if (listener != null) listener.eventCriticalException(this, e);
 		}
 		busy = false;
+		connected = false;
+		connectionAttempted.countDown();
 		if (listener != null) listener.eventThreadFinished(this);
 		/* Also notify the parent NotificationThreads, so that it can determine when all threads have finished working */
 		if (this.thread.getThreadGroup() instanceof NotificationThreads) ((NotificationThreads) this.thread.getThreadGroup()).threadFinished(this);
@@ -255,16 +288,31 @@ public class NotificationThread implements Runnable, PushQueue {
 		if (listener != null) listener.eventThreadStarted(this);
 		try {
 			notificationManager.initializeConnection(server);
+			connected = true;
+			connectionAttempted.countDown();
 			int notificationsPushed = 0;
 			while (mode == MODE.QUEUE) {
-				while (!messages.isEmpty()) {
+				PayloadPerDevice message;
+				while ((message = nextQueuedMessage()) != null) {
 					busy = true;
-					PayloadPerDevice message = messages.get(0);
-					messages.remove(message);
+					if (!unindex(message)) {
+						/* A newer message with the same collapse key was queued for this device */
+						busy = false;
+						continue;
+					}
+					long now = System.currentTimeMillis();
+					if (expirySweepInterval > 0 && now - lastExpirySweep >= expirySweepInterval) sweepExpiredMessages();
+					/* Do not waste connection capacity on messages that expired while waiting in the queue */
+					if (message.isExpired(now)) {
+						dropExpiredMessage(message, now);
+						busy = false;
+						continue;
+					}
 					notificationsPushed++;
 					int messageId = newMessageIdentifier();
 					PushedNotification notification = notificationManager.sendNotification(message.getDevice(), message.getPayload(), false, messageId);
 					notifications.add(notification);
+					if (journal != null) journal.acknowledge(message);
 					try {
 						if (sleepBetweenNotifications > 0) Thread.sleep(sleepBetweenNotifications);
 					} catch (InterruptedException e) {
@@ -275,8 +323,11 @@ public class NotificationThread implements Runnable, PushQueue {
 					}
 					busy = false;
 				}
+				/* Wait for messages to be queued (producers notify the queue instead of interrupting this thread, which would break channel I/O) */
 				try {
-					Thread.sleep(10 * 1000);
+					synchronized (queue) {
+						if (queue.isEmpty()) queue.wait(10 * 1000);
+					}
 				} catch (Exception e) {
 				}
 			}
@@ -288,12 +339,31 @@ public class NotificationThread implements Runnable, PushQueue {
 			this.exception = e;
 			if (listener != null) listener.eventCriticalException(this, e);
 		}
+		connected = false;
+		connectionAttempted.countDown();
 		if (listener != null) listener.eventThreadFinished(this);
 		/* Also notify the parent NotificationThreads, so that it can determine when all threads have finished working */
 		if (this.thread.getThreadGroup() instanceof NotificationThreads) ((NotificationThreads) this.thread.getThreadGroup()).threadFinished(this);
 	}
 
 
+	/**
+	 * Freeze a payload about to be pushed to many devices.
+	 * Payloads which cannot be frozen (test payloads, payloads too big, etc.) are pushed as is,
+	 * so that they fail for each device as usual.
+	 * 
+	 * @param payload a payload
+	 * @return a frozen payload, or the same payload if it cannot be frozen
+	 */
+	private static Payload share(Payload payload) {
+		try {
+			return payload.freeze();
+		} catch (Exception e) {
+			return payload;
+		}
+	}
+
+
 	public PushQueue add(Payload payload, String token) throws InvalidDeviceTokenFormatException {
 		return add(new PayloadPerDevice(payload, token));
 	}
@@ -306,15 +376,319 @@ public class NotificationThread implements Runnable, PushQueue {
 
 	public PushQueue add(PayloadPerDevice message) {
 		if (mode != MODE.QUEUE) return this;
+		if (message.getQueuedTime() == 0) message.setQueuedTime(System.currentTimeMillis());
+		PayloadPerDevice journaled = journal(message);
 		try {
-			messages.add(message);
-			this.thread.interrupt();
-		} catch (Exception e) {
+			synchronized (queue) {
+				/* Wait for room in the message's lane, so that producers are slowed down to the pace of the connection */
+				while (queue.size(journaled.getPriority()) >= queueCapacity)
+					queue.wait();
+				index(journaled);
+				queue.add(journaled);
+				queue.notifyAll();
+			}
+		} catch (InterruptedException e) {
+			/* The message was not queued, so it must not be recovered later on (messages journaled by the caller are left to the caller) */
+			if (journaled != message) journal.acknowledge(journaled);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for room in the queue");
 		}
 		return this;
 	}
 
 
+	public boolean offer(PayloadPerDevice message) {
+		if (mode != MODE.QUEUE) return false;
+		if (message.getQueuedTime() == 0) message.setQueuedTime(System.currentTimeMillis());
+		PayloadPerDevice journaled = journal(message);
+		synchronized (queue) {
+			if (queue.size(journaled.getPriority()) >= queueCapacity) {
+				/*
+				 * The message was not queued, so it must not be recovered later on.  Messages journaled by
+				 * the caller (ex: a NotificationThreads trying other threads) are left for the caller to acknowledge.
+				 */
+				if (journaled != message) journal.acknowledge(journaled);
+				return false;
+			}
+			index(journaled);
+			queue.add(journaled);
+			queue.notifyAll();
+		}
+		return true;
+	}
+
+
+	/**
+	 * Record a message in the journal (if any), unless it was already journaled.
+	 * 
+	 * @param message a message about to be queued
+	 * @return the message to queue
+	 */
+	private PayloadPerDevice journal(PayloadPerDevice message) {
+		if (journal == null || message instanceof PushQueueJournal.Entry) return message;
+		return journal.append(message);
+	}
+
+
+	private static String collapseKey(PayloadPerDevice message) {
+		if (message.getCollapseKey() == null || message.getDevice() == null) return null;
+		return message.getDevice().getToken() + '\n' + message.getCollapseKey();
+	}
+
+
+	/**
+	 * Make a message the latest one for its device and collapse key, superseding any older message still waiting in the queue.
+	 * Must be invoked before the message is added to the queue.
+	 * 
+	 * @param message a message about to be queued
+	 */
+	private void index(PayloadPerDevice message) {
+		String key = collapseKey(message);
+		if (key == null) return;
+		PayloadPerDevice superseded = collapseIndex.put(key, message);
+		/* The superseded message will be skipped, so it must not be recovered later on */
+		if (superseded != null && journal != null) journal.acknowledge(superseded);
+	}
+
+
+	/**
+	 * Remove a message taken from the queue from the collapse index.
+	 * 
+	 * @param message a message taken from the queue
+	 * @return true if the message should be processed, false if it was superseded by a newer message
+	 */
+	private boolean unindex(PayloadPerDevice message) {
+		String key = collapseKey(message);
+		if (key == null) return true;
+		return collapseIndex.remove(key, message);
+	}
+
+
+	/**
+	 * Share a collapse index with other threads, so that messages supersede each other across the whole pool.
+	 * 
+	 * @param collapseIndex an index of the latest queued message per device and collapse key
+	 */
+	void setCollapseIndex(ConcurrentMap<String, PayloadPerDevice> collapseIndex) {
+		this.collapseIndex = collapseIndex;
+	}
+
+
+	/**
+	 * Queue messages recovered from a journal, regardless of the queue capacity.
+	 * 
+	 * @param recoveredMessages messages which were journaled but never pushed
+	 */
+	void requeue(List<PayloadPerDevice> recoveredMessages) {
+		if (recoveredMessages.isEmpty()) return;
+		synchronized (queue) {
+			for (PayloadPerDevice message : recoveredMessages) {
+				index(message);
+				queue.add(message);
+			}
+			queue.notifyAll();
+		}
+	}
+
+
+	/**
+	 * Remove the next message from the queue and wake up any producer waiting for room in the queue.
+	 * 
+	 * @return the next message to push, or null if the queue is empty
+	 */
+	private PayloadPerDevice nextQueuedMessage() {
+		synchronized (queue) {
+			PayloadPerDevice message = queue.poll();
+			if (message != null) queue.notifyAll();
+			return message;
+		}
+	}
+
+
+	/**
+	 * Record a message that expired in the queue as a failed notification, without pushing it.
+	 * 
+	 * @param message an expired message
+	 * @param now the current time in milliseconds
+	 */
+	private void dropExpiredMessage(PayloadPerDevice message, long now) {
+		Exception exception = new NotificationExpiredException(message.getPayload().getExpiry(), now - message.getQueuedTime());
+		PushedNotification notification = new PushedNotification(message.getDevice(), message.getPayload(), exception);
+		notifications.add(notification);
+		PushedNotificationListener pushedNotificationListener = notificationManager.getPushedNotificationListener();
+		if (pushedNotificationListener != null) pushedNotificationListener.eventNotificationPushed(notification);
+		if (journal != null) journal.acknowledge(message);
+	}
+
+
+	/**
+	 * Remove all messages that expired while waiting in this thread's queue, recording each one as a failed notification.
+	 * Expired messages are also dropped when they reach the head of the queue, but sweeping frees room in the queue sooner.
+	 * 
+	 * @return the number of messages dropped
+	 */
+	public int sweepExpiredMessages() {
+		long now = System.currentTimeMillis();
+		List<PayloadPerDevice> expired = new Vector<PayloadPerDevice>();
+		synchronized (queue) {
+			lastExpirySweep = now;
+			queue.removeExpired(now, expired);
+			if (!expired.isEmpty()) queue.notifyAll();
+		}
+		int dropped = 0;
+		for (PayloadPerDevice message : expired) {
+			if (!unindex(message)) continue;
+			dropExpiredMessage(message, now);
+			dropped++;
+		}
+		return dropped;
+	}
+
+
+	/**
+	 * Sweep expired messages from the queue periodically while it is being processed (QUEUE mode only).
+	 * 
+	 * @param expirySweepInterval a number of milliseconds between sweeps, or 0 to disable sweeping (default)
+	 */
+	public void setExpirySweepInterval(long expirySweepInterval) {
+		this.expirySweepInterval = expirySweepInterval;
+	}
+
+
+	public long getExpirySweepInterval() {
+		return expirySweepInterval;
+	}
+
+
+	/**
+	 * Get the number of messages with a NORMAL priority that can currently be queued without waiting.
+	 * 
+	 * @return a number of messages (Integer.MAX_VALUE if the queue is unbounded)
+	 */
+	public int getRemainingCapacity() {
+		if (mode != MODE.QUEUE) return 0;
+		if (queueCapacity == Integer.MAX_VALUE) return Integer.MAX_VALUE;
+		synchronized (queue) {
+			return Math.max(0, queueCapacity - queue.size(PayloadPerDevice.PRIORITY.NORMAL));
+		}
+	}
+
+
+	/**
+	 * Set the maximum number of messages that can be waiting in each lane of this thread's queue (QUEUE mode only).
+	 * When that maximum is reached, add(..) waits until room becomes available and offer(..) returns false.
+	 * Since each priority has its own lane, a backlog of LOW priority messages never blocks HIGH priority producers.
+	 * 
+	 * Default is Integer.MAX_VALUE (unbounded).
+	 * 
+	 * @param queueCapacity a maximum number of queued messages per priority
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity <= 0) throw new IllegalArgumentException("Queue capacity must be greater than zero");
+		synchronized (queue) {
+			this.queueCapacity = queueCapacity;
+			queue.notifyAll();
+		}
+	}
+
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+
+	/**
+	 * Choose how messages are taken from priority lanes (QUEUE mode only).
+	 * 
+	 * By default, scheduling is strict:  a message is pushed only when no message with a higher priority is waiting.
+	 * If weights are provided, lanes are served in proportion to their weights instead, so that a steady flow of urgent
+	 * messages cannot starve less urgent ones.
+	 * 
+	 * @param weights one weight per priority, from HIGH to LOW (ex: 8, 3, 1), or none for strict scheduling
+	 */
+	public void setPriorityWeights(int... weights) {
+		synchronized (queue) {
+			queue.setWeights(weights);
+		}
+	}
+
+
+	/**
+	 * Provide a listener which will be notified of each notification as soon as it is pushed by this thread,
+	 * instead of having to inspect the list of pushed notifications afterwards.
+	 * 
+	 * @param listener any object implementing the PushedNotificationListener interface
+	 */
+	public void setPushedNotificationListener(PushedNotificationListener listener) {
+		notificationManager.setPushedNotificationListener(listener);
+	}
+
+
+	public PushedNotificationListener getPushedNotificationListener() {
+		return notificationManager.getPushedNotificationListener();
+	}
+
+
+	/**
+	 * Attach a durable journal to this queue (QUEUE mode only), and queue again any message
+	 * recovered from the journal that was not pushed before the JVM stopped.
+	 * 
+	 * Messages added afterwards are recorded in the journal before being queued, and acknowledged once pushed.
+	 * 
+	 * @param journal a journal, or null to stop journaling
+	 */
+	public void setJournal(PushQueueJournal journal) {
+		this.journal = journal;
+		if (journal != null) requeue(journal.takeRecoveredMessages());
+	}
+
+
+	/**
+	 * Attach a journal shared with other threads, without taking its recovered messages.
+	 * 
+	 * @param journal a journal
+	 */
+	void attachJournal(PushQueueJournal journal) {
+		this.journal = journal;
+	}
+
+
+	public PushQueueJournal getJournal() {
+		return journal;
+	}
+
+
+	/**
+	 * Set the policy deciding which pushed notifications this thread retains in its list of pushed notifications.
+	 * All notifications are counted regardless of the policy.
+	 * 
+	 * @param retentionPolicy a retention policy (default is RetentionPolicy.ALL)
+	 */
+	public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+		notifications.setRetentionPolicy(retentionPolicy);
+	}
+
+
+	public RetentionPolicy getRetentionPolicy() {
+		return notifications.getRetentionPolicy();
+	}
+
+
+	/**
+	 * Stream the outcome of every notification pushed by this thread to a log file.
+	 * 
+	 * @param resultLog a pushed notification log, or null to stop logging
+	 */
+	public void setResultLog(PushedNotificationLog resultLog) {
+		notifications.setResultLog(resultLog);
+	}
+
+
+	public PushedNotificationLog getResultLog() {
+		return notifications.getResultLog();
+	}
+
+
 	/**
 	 * Set a maximum number of notifications that should be streamed over a continuous connection
 	 * to an Apple server.  When that maximum is reached, the thread automatically closes and
@@ -374,7 +748,13 @@ public class NotificationThread implements Runnable, PushQueue {
 	 * @return the number of devices registered with this thread
 	 */
 	public int size() {
-		return devices != null ? devices.size() : messages.size();
+		if (devices != null) return devices.size();
+		if (mode == MODE.QUEUE) {
+			synchronized (queue) {
+				return queue.size();
+			}
+		}
+		return messages.size();
 	}
 
 
@@ -414,6 +794,16 @@ public class NotificationThread implements Runnable, PushQueue {
 	}
 
 
+	/**
+	 * Get the server this thread pushes notifications to.
+	 * 
+	 * @return a server
+	 */
+	public AppleNotificationServer getServer() {
+		return server;
+	}
+
+
 	/**
 	 * Return a new sequential message identifier.
 	 * 
@@ -511,6 +901,33 @@ public class NotificationThread implements Runnable, PushQueue {
 	}
 
 
+	/**
+	 * Determine if this thread is connected to the server:  its first connection was opened, and the thread has not stopped since
+	 * (because it finished its work or because of a critical exception).
+	 * 
+	 * @return true if the thread is connected and ready to push notifications
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+
+	/**
+	 * Wait until this thread has opened its first connection to the server, or failed to.
+	 * 
+	 * @param timeout the maximum number of milliseconds to wait
+	 * @return true if the thread is connected, false if it failed to connect, already stopped or the timeout elapsed
+	 */
+	public boolean waitForConnection(long timeout) {
+		try {
+			connectionAttempted.await(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return connected;
+	}
+
+
 	/**
 	 * If this thread experienced a critical exception (communication error, keystore issue, etc.), this method returns the exception.
 	 * @return a critical exception, if one occurred in this thread
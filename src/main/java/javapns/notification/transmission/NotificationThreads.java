@@ -1,7 +1,10 @@
 package javapns.notification.transmission;
 
 import java.util.*;
+import java.util.concurrent.*;
 
+import javapns.communication.*;
+import javapns.communication.exceptions.*;
 import javapns.devices.*;
 import javapns.devices.exceptions.*;
 import javapns.notification.*;
@@ -18,10 +21,11 @@ import javapns.notification.*;
  * @see NotificationThread.MODE
  * @see NotificationThread
  */
-public class NotificationThreads extends ThreadGroup implements PushQueue {
+public class NotificationThreads extends ThreadGroup implements BoundedPushQueue {
 
 	private static final long DEFAULT_DELAY_BETWEEN_THREADS = 500; // the number of milliseconds to wait between each thread startup
 	private List<NotificationThread> threads = new Vector<NotificationThread>();
+	private PushQueueJournal journal;
 	private NotificationProgressListener listener;
 	private boolean started = false;
 	private int threadsRunning = 0;
@@ -40,7 +44,7 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 	 */
 	public NotificationThreads(AppleNotificationServer server, Payload payload, List<Device> devices, int numberOfThreads) {
 		super("javapns notification threads (" + numberOfThreads + " threads)");
-		for (List deviceGroup : makeGroups(devices, numberOfThreads))
+		for (List<Device> deviceGroup : makeGroups(devices, numberOfThreads))
 			threads.add(new NotificationThread(this, new PushNotificationManager(), server, payload, deviceGroup));
 	}
 
@@ -54,7 +58,7 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 	 */
 	public NotificationThreads(AppleNotificationServer server, List<PayloadPerDevice> messages, int numberOfThreads) {
 		super("javapns notification threads (" + numberOfThreads + " threads)");
-		for (List deviceGroup : makeGroups(messages, numberOfThreads))
+		for (List<PayloadPerDevice> deviceGroup : makeGroups(messages, numberOfThreads))
 			threads.add(new NotificationThread(this, new PushNotificationManager(), server, deviceGroup));
 	}
 
@@ -84,11 +88,10 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 	 * @param devices a very large list of devices
 	 * @param threads a list of pre-built threads
 	 */
-	@SuppressWarnings("unchecked")
 	public NotificationThreads(AppleNotificationServer server, Payload payload, List<Device> devices, List<NotificationThread> threads) {
 		super("javapns notification threads (" + threads.size() + " threads)");
 		this.threads = threads;
-		List<List> groups = makeGroups(devices, threads.size());
+		List<List<Device>> groups = makeGroups(devices, threads.size());
 		for (int i = 0; i < groups.size(); i++)
 			threads.get(i).setDevices(groups.get(i));
 	}
@@ -148,8 +151,12 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 	 */
 	public NotificationThreads(AppleNotificationServer server, int numberOfThreads) {
 		super("javapns notification thread pool (" + numberOfThreads + " threads)");
+		/* Messages with a collapse key supersede each other no matter which thread they were dispatched to */
+		ConcurrentMap<String, PayloadPerDevice> collapseIndex = new ConcurrentHashMap<String, PayloadPerDevice>();
 		for (int i = 0; i < numberOfThreads; i++) {
-			threads.add(new NotificationThread(this, new PushNotificationManager(), server));
+			NotificationThread thread = new NotificationThread(this, new PushNotificationManager(), server);
+			thread.setCollapseIndex(collapseIndex);
+			threads.add(thread);
 		}
 	}
 
@@ -166,12 +173,47 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 
 	public PushQueue add(PayloadPerDevice message) {
 		start(); // just in case start() was not invoked before
+		if (message.getQueuedTime() == 0) message.setQueuedTime(System.currentTimeMillis());
+		if (journal != null) message = journal.append(message);
 		NotificationThread targetThread = getNextAvailableThread();
-		targetThread.add(message);
+		try {
+			targetThread.add(message);
+		} catch (IllegalStateException e) {
+			/* Interrupted while waiting for room:  the message was not queued */
+			if (journal != null) journal.acknowledge(message);
+			throw e;
+		}
 		return targetThread;
 	}
 
 
+	public boolean offer(PayloadPerDevice message) {
+		start(); // just in case start() was not invoked before
+		if (message.getQueuedTime() == 0) message.setQueuedTime(System.currentTimeMillis());
+		if (journal != null) message = journal.append(message);
+		/* Threads do not acknowledge a message journaled here when they refuse it, so it can be offered to the next thread */
+		for (int i = 0; i < threads.size(); i++) {
+			NotificationThread thread = getNextAvailableThread();
+			if (thread.offer(message)) return true;
+		}
+		if (journal != null) journal.acknowledge(message);
+		return false;
+	}
+
+
+	/**
+	 * Get the total number of messages that all threads can currently absorb without waiting.
+	 * 
+	 * @return a number of messages (Integer.MAX_VALUE if queues are unbounded)
+	 */
+	public int getRemainingCapacity() {
+		long remaining = 0;
+		for (NotificationThread thread : threads)
+			remaining += thread.getRemainingCapacity();
+		return (int) Math.min(remaining, Integer.MAX_VALUE);
+	}
+
+
 	/**
 	 * Get the next available thread.
 	 * 
@@ -181,9 +223,14 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 		for (int i = 0; i < threads.size(); i++) {
 			NotificationThread thread = getNextThread();
 			boolean busy = thread.isBusy();
-			if (!busy) return thread;
+			if (!busy && thread.getRemainingCapacity() > 0) return thread;
 		}
-		return getNextThread(); /* All threads are busy, return the next one regardless of its busy status */
+		/* All threads are busy, return the next one that still has room in its queue */
+		for (int i = 0; i < threads.size(); i++) {
+			NotificationThread thread = getNextThread();
+			if (thread.getRemainingCapacity() > 0) return thread;
+		}
+		return getNextThread(); /* All queues are full, return the next one regardless of its status */
 	}
 
 
@@ -206,8 +253,8 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 	 * @param threads the number of threads to group devices for
 	 * @return
 	 */
-	private static List<List> makeGroups(List objects, int threads) {
-		List<List> groups = new Vector<List>(threads);
+	private static <T> List<List<T>> makeGroups(List<T> objects, int threads) {
+		List<List<T>> groups = new Vector<List<T>>(threads);
 		int total = objects.size();
 		int devicesPerThread = (total / threads);
 		if (total % threads > 0) devicesPerThread++;
@@ -219,7 +266,7 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 			if (lastObject >= total) lastObject = total - 1;
 			lastObject++;
 			//System.out.println("Grouping together "+(lastDevice-firstDevice)+" devices (#"+firstDevice+" to "+lastDevice+")");
-			List threadObjects = objects.subList(firstObject, lastObject);
+			List<T> threadObjects = objects.subList(firstObject, lastObject);
 			groups.add(threadObjects);
 		}
 		return groups;
@@ -237,6 +284,7 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 		started = true;
 		if (threadsRunning > 0) throw new IllegalStateException("NotificationThreads already started (" + threadsRunning + " still running)");
 		assignThreadsNumbers();
+		prepareProxyTunnels();
 		for (NotificationThread thread : threads) {
 			threadsRunning++;
 			thread.start();
@@ -251,6 +299,76 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 	}
 
 
+	/**
+	 * Start all threads at once and wait until they have opened their connections, so that notifications
+	 * queued afterwards are pushed right away (ex: when an application starts, before traffic arrives).
+	 * 
+	 * <p>Keystores are loaded, SSL contexts initialized and server addresses resolved once for all threads,
+	 * then all threads connect in parallel instead of starting one after another.  If threads were already
+	 * started, this method only waits for their connections.</p>
+	 * 
+	 * @param timeout the maximum number of milliseconds to wait for all threads to connect
+	 * @return the number of threads connected and ready to push notifications
+	 * @throws KeystoreException thrown if a keystore cannot be loaded
+	 * @throws CommunicationException thrown if a server's address cannot be resolved
+	 */
+	public int warmUp(long timeout) throws KeystoreException, CommunicationException {
+		for (AppleNotificationServer server : getServers().keySet())
+			PushNotificationManager.prepare(server);
+		synchronized (this) {
+			long delay = delayBetweenThreads;
+			delayBetweenThreads = 0;
+			try {
+				start();
+			} finally {
+				delayBetweenThreads = delay;
+			}
+		}
+		long deadline = System.currentTimeMillis() + timeout;
+		int connected = 0;
+		for (NotificationThread thread : threads) {
+			if (thread.waitForConnection(Math.max(0, deadline - System.currentTimeMillis()))) connected++;
+		}
+		return connected;
+	}
+
+
+	/**
+	 * Get the servers that threads push notifications to, with the number of threads pushing to each.
+	 */
+	private Map<AppleNotificationServer, Integer> getServers() {
+		Map<AppleNotificationServer, Integer> servers = new IdentityHashMap<AppleNotificationServer, Integer>();
+		for (NotificationThread thread : threads) {
+			AppleNotificationServer server = thread.getServer();
+			if (server == null) continue;
+			Integer count = servers.get(server);
+			servers.put(server, count == null ? 1 : count + 1);
+		}
+		return servers;
+	}
+
+
+	/**
+	 * When connecting through a proxy, open tunnels for all threads in parallel,
+	 * instead of letting each thread open its own tunnel when it starts.
+	 */
+	private void prepareProxyTunnels() {
+		for (Map.Entry<AppleNotificationServer, Integer> entry : getServers().entrySet()) {
+			AppleNotificationServer server = entry.getKey();
+			ProxyManager.prepareTunnels(server, server.getNotificationServerHost(), server.getNotificationServerPort(), entry.getValue());
+		}
+	}
+
+
+	/**
+	 * Close proxy tunnels prepared for all threads (or opened to replace those taken) which are still unused.
+	 */
+	private void closeProxyTunnels() {
+		for (AppleNotificationServer server : getServers().keySet())
+			ProxyManager.closeIdleTunnels(server, server.getNotificationServerHost(), server.getNotificationServerPort());
+	}
+
+
 	/**
 	 * Configure in all threads the maximum number of notifications per connection.
 	 * 
@@ -279,6 +397,113 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 	}
 
 
+	/**
+	 * Configure in all threads the maximum number of messages that can be waiting in each thread's queue (QUEUE mode only).
+	 * 
+	 * When all queues are full, add(..) waits until room becomes available and offer(..) returns false,
+	 * so that a streaming source is slowed down to the pace that connections can actually absorb.
+	 * 
+	 * @param queueCapacity the maximum number of queued messages per thread (default is unbounded)
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		for (NotificationThread thread : threads)
+			thread.setQueueCapacity(queueCapacity);
+	}
+
+
+	/**
+	 * Remove all messages that expired while waiting in any thread's queue, recording each one as a failed notification.
+	 * 
+	 * @return the number of messages dropped
+	 */
+	public int sweepExpiredMessages() {
+		int dropped = 0;
+		for (NotificationThread thread : threads)
+			dropped += thread.sweepExpiredMessages();
+		return dropped;
+	}
+
+
+	/**
+	 * Sweep expired messages periodically in all threads.
+	 * 
+	 * @param expirySweepInterval a number of milliseconds between sweeps, or 0 to disable sweeping (default)
+	 */
+	public void setExpirySweepInterval(long expirySweepInterval) {
+		for (NotificationThread thread : threads)
+			thread.setExpirySweepInterval(expirySweepInterval);
+	}
+
+
+	/**
+	 * Choose how messages are taken from priority lanes in all threads.
+	 * 
+	 * @param weights one weight per priority, from HIGH to LOW (ex: 8, 3, 1), or none for strict scheduling (default)
+	 * @see NotificationThread#setPriorityWeights(int...)
+	 */
+	public void setPriorityWeights(int... weights) {
+		for (NotificationThread thread : threads)
+			thread.setPriorityWeights(weights);
+	}
+
+
+	/**
+	 * Attach a listener to all threads, so that each notification is reported as soon as it is pushed.
+	 * 
+	 * @param listener any object implementing the PushedNotificationListener interface (must be thread-safe)
+	 */
+	public void setPushedNotificationListener(PushedNotificationListener listener) {
+		for (NotificationThread thread : threads)
+			thread.setPushedNotificationListener(listener);
+	}
+
+
+	/**
+	 * Attach a durable journal shared by all threads (QUEUE mode only).
+	 * Messages recovered from the journal are spread across threads and queued again.
+	 * 
+	 * @param journal a journal, or null to stop journaling
+	 */
+	public void setJournal(PushQueueJournal journal) {
+		this.journal = journal;
+		for (NotificationThread thread : threads)
+			thread.attachJournal(journal);
+		if (journal == null || threads.isEmpty()) return;
+		List<List<PayloadPerDevice>> groups = makeGroups(journal.takeRecoveredMessages(), threads.size());
+		for (int i = 0; i < groups.size(); i++)
+			threads.get(i).requeue(groups.get(i));
+	}
+
+
+	public PushQueueJournal getJournal() {
+		return journal;
+	}
+
+
+	/**
+	 * Set the policy deciding which pushed notifications each thread retains.
+	 * Use RetentionPolicy.FAILURES_ONLY or RetentionPolicy.COUNTERS_ONLY to limit memory usage when pushing to a large number of devices.
+	 * 
+	 * @param retentionPolicy a retention policy (default is RetentionPolicy.ALL)
+	 */
+	public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+		for (NotificationThread thread : threads)
+			thread.setRetentionPolicy(retentionPolicy);
+	}
+
+
+	/**
+	 * Stream the outcome of every notification pushed by all threads to a single log file.
+	 * Combined with RetentionPolicy.COUNTERS_ONLY, this provides a complete audit trail without holding results in memory.
+	 * 
+	 * @param resultLog a pushed notification log, or null to stop logging
+	 */
+	public void setResultLog(PushedNotificationLog resultLog) {
+		for (NotificationThread thread : threads)
+			thread.setResultLog(resultLog);
+	}
+
+
 	/**
 	 * Get a list of threads created to push notifications.
 	 * 
@@ -315,15 +540,17 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 	 * This method tracks the number of threads still running, allowing us
 	 * to detect when ALL threads have finished.
 	 * 
-	 * When all threads are done working, this method fires an AllThreadsFinished
-	 * event to the attached listener (if one is present) and wakes up any
-	 * object that is waiting for the waitForAllThreads() method to return.
+	 * When all threads are done working, this method closes proxy tunnels prepared
+	 * for them and still unused, fires an AllThreadsFinished event to the attached
+	 * listener (if one is present) and wakes up any object that is waiting for the
+	 * waitForAllThreads() method to return.
 	 * 
 	 * @param notificationThread
 	 */
 	protected synchronized void threadFinished(NotificationThread notificationThread) {
 		threadsRunning--;
 		if (threadsRunning == 0) {
+			closeProxyTunnels();
 			if (listener != null) listener.eventAllThreadsFinished(this);
 			try {
 				synchronized (finishPoint) {
@@ -388,19 +615,65 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 
 
 	/**
-	 * Get a list of all notifications pushed by all threads.
+	 * Get a list of all notifications pushed and retained by all threads.
+	 * Counters of the returned list cover all notifications pushed, including those that were not retained.
+	 * The list is a snapshot:  every call copies the notifications retained by all threads, so callers
+	 * polling outcomes repeatedly should use getSuccessfulCount(), getFailedCount() and getStatusCount(int) instead.
 	 * 
 	 * @return a list of pushed notifications
 	 */
 	public PushedNotifications getPushedNotifications() {
-		int capacity = 0;
+		return PushedNotifications.combine(getPushedNotificationLists());
+	}
+
+
+	private List<PushedNotifications> getPushedNotificationLists() {
+		List<PushedNotifications> lists = new ArrayList<PushedNotifications>(threads.size());
 		for (NotificationThread thread : threads)
-			capacity += thread.getPushedNotifications().size();
-		PushedNotifications all = new PushedNotifications(capacity);
-		all.setMaxRetained(capacity);
+			lists.add(thread.getPushedNotifications());
+		return lists;
+	}
+
+
+	/**
+	 * Get the number of notifications successfully pushed by all threads so far.
+	 * Counters are read directly from each thread, without copying any list.
+	 * 
+	 * @return a number of notifications
+	 */
+	public long getSuccessfulCount() {
+		long total = 0;
+		for (NotificationThread thread : threads)
+			total += thread.getPushedNotifications().getSuccessfulCount();
+		return total;
+	}
+
+
+	/**
+	 * Get the number of notifications that failed in all threads so far.
+	 * Counters are read directly from each thread, without copying any list.
+	 * 
+	 * @return a number of notifications
+	 */
+	public long getFailedCount() {
+		long total = 0;
+		for (NotificationThread thread : threads)
+			total += thread.getPushedNotifications().getFailedCount();
+		return total;
+	}
+
+
+	/**
+	 * Get the number of error-response packets received with a given status code by all threads so far.
+	 * 
+	 * @param status a status code returned by Apple
+	 * @return a number of notifications
+	 */
+	public long getStatusCount(int status) {
+		long total = 0;
 		for (NotificationThread thread : threads)
-			all.addAll(thread.getPushedNotifications());
-		return all;
+			total += thread.getPushedNotifications().getStatusCount(status);
+		return total;
 	}
 
 
@@ -416,11 +689,12 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
 
 	/**
 	 * Get a list of all notifications that all threads attempted to push but that failed.
+	 * The list is a snapshot copied from the failure index of each thread.
 	 * 
 	 * @return a list of failed notifications
 	 */
 	public PushedNotifications getFailedNotifications() {
-		return getPushedNotifications().getFailedNotifications();
+		return PushedNotifications.combineFailures(getPushedNotificationLists());
 	}
 
 
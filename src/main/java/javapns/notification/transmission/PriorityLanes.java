@@ -0,0 +1,134 @@
+package javapns.notification.transmission;
+
+import java.util.*;
+
+import javapns.notification.*;
+import javapns.notification.PayloadPerDevice.PRIORITY;
+
+/**
+ * <p>A queue of messages split into one lane per priority, used by NotificationThread in QUEUE mode.</p>
+ * 
+ * <p>By default, scheduling is strict:  a message is taken from a lane only if all more urgent lanes are empty.
+ * Weights can be assigned to lanes instead, in which case non-empty lanes are served in proportion to their
+ * weights (smooth weighted round-robin), so that less urgent lanes are never starved.</p>
+ * 
+ * <p>This class is not thread-safe;  NotificationThread synchronizes on it.</p>
+ */
+class PriorityLanes {
+
+	private final ArrayDeque<PayloadPerDevice>[] lanes;
+	private int size = 0;
+
+	/* Weighted scheduling (null when scheduling is strict) */
+	private int[] weights;
+	private int[] credits;
+
+
+	@SuppressWarnings("unchecked")
+	PriorityLanes() {
+		this.lanes = new ArrayDeque[PRIORITY.values().length];
+		for (int i = 0; i < lanes.length; i++)
+			lanes[i] = new ArrayDeque<PayloadPerDevice>();
+	}
+
+
+	void add(PayloadPerDevice message) {
+		lanes[message.getPriority().ordinal()].add(message);
+		size++;
+	}
+
+
+	void addAll(Collection<PayloadPerDevice> messages) {
+		for (PayloadPerDevice message : messages)
+			add(message);
+	}
+
+
+	/**
+	 * Remove the next message to push, according to the scheduling policy.
+	 * 
+	 * @return a message, or null if all lanes are empty
+	 */
+	PayloadPerDevice poll() {
+		if (size == 0) return null;
+		int lane = weights == null ? firstNonEmptyLane() : nextWeightedLane();
+		size--;
+		return lanes[lane].poll();
+	}
+
+
+	private int firstNonEmptyLane() {
+		for (int i = 0; i < lanes.length; i++)
+			if (!lanes[i].isEmpty()) return i;
+		return -1;
+	}
+
+
+	private int nextWeightedLane() {
+		int total = 0;
+		int selected = -1;
+		for (int i = 0; i < lanes.length; i++) {
+			if (lanes[i].isEmpty()) continue;
+			credits[i] += weights[i];
+			total += weights[i];
+			if (selected < 0 || credits[i] > credits[selected]) selected = i;
+		}
+		credits[selected] -= total;
+		return selected;
+	}
+
+
+	/**
+	 * Remove all messages which expired while waiting in a lane.
+	 * 
+	 * @param now the current time in milliseconds
+	 * @param expired a list to which expired messages are added
+	 */
+	void removeExpired(long now, List<PayloadPerDevice> expired) {
+		for (ArrayDeque<PayloadPerDevice> lane : lanes) {
+			for (Iterator<PayloadPerDevice> iterator = lane.iterator(); iterator.hasNext();) {
+				PayloadPerDevice message = iterator.next();
+				if (message.isExpired(now)) {
+					iterator.remove();
+					expired.add(message);
+					size--;
+				}
+			}
+		}
+	}
+
+
+	int size() {
+		return size;
+	}
+
+
+	int size(PRIORITY priority) {
+		return lanes[priority.ordinal()].size();
+	}
+
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+
+	/**
+	 * Use weighted scheduling between lanes, or strict scheduling if no weight is provided.
+	 * 
+	 * @param weights one weight per priority, from HIGH to LOW (ex: 8, 3, 1)
+	 */
+	void setWeights(int... weights) {
+		if (weights == null || weights.length == 0) {
+			this.weights = null;
+			this.credits = null;
+			return;
+		}
+		if (weights.length != lanes.length) throw new IllegalArgumentException("Expected one weight per priority (" + lanes.length + ")");
+		for (int weight : weights)
+			if (weight <= 0) throw new IllegalArgumentException("Weights must be greater than zero");
+		this.weights = weights.clone();
+		this.credits = new int[lanes.length];
+	}
+
+}
@@ -36,9 +36,13 @@ public interface PushQueue {
 
 	/**
 	 * Queue a message for delivery.  A thread will pick it up and push it asynchroneously.
+	 * Messages are queued in a lane matching their priority, and messages with a higher priority are pushed first.
+	 * If the queue's capacity is limited, this method waits until there is room for the message.
 	 * This method has no effect if the underlying notification thread is not in QUEUE mode.
 	 * @param message a payload/device pair
 	 * @return the actual queue to which the message was added, which could be a different one if the request was delegated to a sub-queue
+	 * @throws IllegalStateException thrown if the calling thread is interrupted while waiting for room, in which case the message is not queued (the thread's interrupt status is preserved)
+	 * @throws IllegalArgumentException thrown if a journal is attached and the message has no payload or no device token
 	 */
 	public PushQueue add(PayloadPerDevice message);
 
@@ -0,0 +1,500 @@
+package javapns.notification.transmission;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+import javapns.devices.*;
+import javapns.notification.*;
+
+import org.apache.log4j.*;
+
+/**
+ * <p>A durable write-ahead journal for messages added to a {@link PushQueue}.</p>
+ * 
+ * <p>Messages added to a queue in QUEUE mode normally live in memory only, so they are lost if the JVM stops
+ * before they are pushed.  When a journal is attached to a {@link NotificationThread} or {@link NotificationThreads},
+ * each message added is first recorded in the journal, and acknowledged once it has been pushed.  Messages that were
+ * never acknowledged are recovered and queued again the next time a journal is opened on the same directory.</p>
+ * 
+ * <p>The journal is written to memory-mapped segment files which are rolled when full, and deleted once all
+ * messages they contain have been acknowledged.  Writes are made durable by a background thread which forces
+ * all records appended since its last pass in a single operation (group commit), so that many producers can share
+ * the cost of each flush.  By default, adding a message waits until its record is durable; this can be disabled
+ * with {@link #setSynchronousCommit(boolean)} for higher throughput at the cost of losing the last few messages
+ * in case of a crash.</p>
+ * 
+ * <p>Payloads are recorded as JSON, along with their class name, character encoding, expiry, maximum size, priority,
+ * collapse key and the time at which they were queued, so that recovered messages which expired in the meantime are dropped.  Payload classes
+ * without a public constructor taking a JSON string, frozen payloads and payloads whose maximum size cannot be restored
+ * by that constructor are recovered as {@link RawPayload} objects with their original maximum size.</p>
+ */
+public class PushQueueJournal {
+
+	private static final Logger logger = Logger.getLogger(PushQueueJournal.class);
+
+	private static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	private static final String SEGMENT_SUFFIX = ".journal";
+
+	/* Record header: body length (written last to mark the record as complete) and CRC32 of the body */
+	private static final int HEADER_SIZE = 8;
+
+	private static final byte RECORD_ENQUEUED = 1;
+	private static final byte RECORD_ACKNOWLEDGED = 2;
+
+	private final File directory;
+	private final int segmentSize;
+
+	/* Segments still on disk, from the oldest to the one currently written */
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private Segment current;
+	private long nextSegmentNumber = 1;
+
+	/* Journal ids of messages not yet acknowledged, and the segment holding each one */
+	private final Map<Long, Segment> pending = new HashMap<Long, Segment>();
+	private long nextId = 1;
+
+	/* Messages recovered when the journal was opened, until they are taken by a queue */
+	private List<PayloadPerDevice> recovered = new Vector<PayloadPerDevice>();
+
+	/* Group commit: number of records appended, and number of records known to be durable */
+	private long appended = 0;
+	private long committed = 0;
+	private boolean synchronousCommit = true;
+	private boolean closed = false;
+	private final Thread flusher;
+
+
+	/**
+	 * Open a journal in a directory, recovering any message that was not acknowledged.
+	 * 
+	 * @param directory a directory dedicated to this journal (created if needed)
+	 * @throws IOException if the directory or its segments cannot be read
+	 */
+	public PushQueueJournal(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+
+	/**
+	 * Open a journal in a directory, recovering any message that was not acknowledged.
+	 * 
+	 * @param directory a directory dedicated to this journal (created if needed)
+	 * @param segmentSize the size of each segment file, in bytes
+	 * @throws IOException if the directory or its segments cannot be read
+	 */
+	public PushQueueJournal(File directory, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create journal directory " + directory);
+		recover();
+		this.flusher = new Thread(new Runnable() {
+
+			public void run() {
+				flushContinuously();
+			}
+		}, "JavaPNS journal flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+
+	/**
+	 * Read all existing segments in order, keeping enqueued messages which have no matching acknowledgement.
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		Map<Long, byte[]> unacknowledged = new LinkedHashMap<Long, byte[]>();
+		Map<Long, Segment> owners = new HashMap<Long, Segment>();
+		for (File file : files) {
+			Segment segment = new Segment(file);
+			segments.add(segment);
+			nextSegmentNumber = Math.max(nextSegmentNumber, segment.number + 1);
+			RandomAccessFile input = new RandomAccessFile(file, "r");
+			try {
+				ByteBuffer buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+				while (buffer.remaining() >= HEADER_SIZE) {
+					int length = buffer.getInt();
+					int checksum = buffer.getInt();
+					/* A zero length marks the end of the segment, an invalid one a record torn by a crash */
+					if (length <= 0 || length > buffer.remaining()) break;
+					byte[] body = new byte[length];
+					buffer.get(body);
+					CRC32 crc = new CRC32();
+					crc.update(body);
+					if ((int) crc.getValue() != checksum) break;
+					DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+					byte type = in.readByte();
+					long id = in.readLong();
+					nextId = Math.max(nextId, id + 1);
+					if (type == RECORD_ENQUEUED) {
+						unacknowledged.put(id, body);
+						owners.put(id, segment);
+					} else if (type == RECORD_ACKNOWLEDGED) {
+						unacknowledged.remove(id);
+					}
+				}
+			} finally {
+				input.close();
+			}
+		}
+		for (Map.Entry<Long, byte[]> record : unacknowledged.entrySet()) {
+			Segment segment = owners.get(record.getKey());
+			pending.put(record.getKey(), segment);
+			segment.pendingCount++;
+			try {
+				recovered.add(readMessage(record.getKey(), record.getValue()));
+			} catch (Exception e) {
+				logger.warn("Discarding journaled message " + record.getKey() + " which cannot be recovered: " + e.getMessage());
+				acknowledge(record.getKey());
+			}
+		}
+		deleteAcknowledgedSegments();
+	}
+
+
+	/**
+	 * Take the messages recovered when this journal was opened, so that they can be queued again.
+	 * Recovered messages are returned only once; they remain in the journal until they are acknowledged.
+	 * 
+	 * @return a list of messages which were journaled but never acknowledged
+	 */
+	public synchronized List<PayloadPerDevice> takeRecoveredMessages() {
+		List<PayloadPerDevice> messages = recovered;
+		recovered = new Vector<PayloadPerDevice>();
+		return messages;
+	}
+
+
+	/**
+	 * Record a message in the journal, waiting until the record is durable if synchronous commit is enabled.
+	 * If the message cannot be journaled, an error is logged and the message is returned as is so that it can still be pushed.
+	 * 
+	 * @param message a message about to be queued
+	 * @return the journaled message to queue instead of the original one
+	 * @throws IllegalArgumentException thrown if the message has no payload or no device token, in which case it is not journaled
+	 */
+	public PayloadPerDevice append(PayloadPerDevice message) {
+		if (message.getPayload() == null) throw new IllegalArgumentException("Cannot journal a message without a payload");
+		if (message.getDevice() == null || message.getDevice().getToken() == null) throw new IllegalArgumentException("Cannot journal a message without a device token");
+		Entry entry;
+		long sequence;
+		synchronized (this) {
+			try {
+				if (closed) throw new IOException("Journal is closed");
+				entry = new Entry(message, nextId++);
+				write(writeMessage(entry));
+				pending.put(entry.journalId, current);
+				current.pendingCount++;
+				sequence = appended;
+			} catch (IOException e) {
+				logger.error("Unable to journal message: " + e.getMessage());
+				return message;
+			}
+		}
+		if (synchronousCommit) waitForCommit(sequence);
+		return entry;
+	}
+
+
+	/**
+	 * Record that a journaled message has been pushed, so that it will not be recovered.
+	 * Messages that were not journaled are ignored.
+	 * 
+	 * @param message a message previously returned by append
+	 */
+	public void acknowledge(PayloadPerDevice message) {
+		if (message instanceof Entry) acknowledge(((Entry) message).journalId);
+	}
+
+
+	private synchronized void acknowledge(long journalId) {
+		Segment segment = pending.remove(journalId);
+		if (segment == null) return;
+		segment.pendingCount--;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(RECORD_ACKNOWLEDGED);
+			out.writeLong(journalId);
+			write(bytes.toByteArray());
+		} catch (IOException e) {
+			logger.error("Unable to journal acknowledgement of message " + journalId + ": " + e.getMessage());
+		}
+		deleteAcknowledgedSegments();
+	}
+
+
+	private void write(byte[] body) throws IOException {
+		int size = HEADER_SIZE + body.length;
+		if (size > segmentSize) throw new IOException("Record of " + body.length + " bytes does not fit in a journal segment");
+		if (current == null || current.buffer.remaining() < size) roll();
+		MappedByteBuffer buffer = current.buffer;
+		int position = buffer.position();
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		buffer.position(position + HEADER_SIZE);
+		buffer.put(body);
+		buffer.putInt(position + 4, (int) crc.getValue());
+		buffer.putInt(position, body.length);
+		appended++;
+		notifyAll();
+	}
+
+
+	/**
+	 * Start a new segment, making the previous one durable first.
+	 * The new segment is mapped before the current one is released, so that a failed roll leaves the journal usable.
+	 */
+	private void roll() throws IOException {
+		File file = new File(directory, String.format("%016d", nextSegmentNumber) + SEGMENT_SUFFIX);
+		Segment segment = new Segment(file);
+		segment.buffer = map(file, segmentSize);
+		nextSegmentNumber++;
+		if (current != null) {
+			current.buffer.force();
+			current.buffer = null;
+		}
+		segments.add(segment);
+		current = segment;
+		deleteAcknowledgedSegments();
+	}
+
+
+	/**
+	 * Create and map a segment file, deleting it if it cannot be mapped.
+	 * The calling thread's interrupt status is cleared while mapping, since an interrupt would close the channel and fail the mapping.
+	 */
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		boolean interrupted = Thread.interrupted();
+		MappedByteBuffer buffer = null;
+		try {
+			RandomAccessFile output = new RandomAccessFile(file, "rw");
+			try {
+				buffer = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			throw new IOException("Unable to create journal segment " + file + ": " + e.getMessage());
+		} finally {
+			if (buffer == null && file.exists() && !file.delete()) logger.debug("Unable to delete journal segment " + file);
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+		return buffer;
+	}
+
+
+	/**
+	 * Delete segments from the oldest one, as long as all their messages were acknowledged.
+	 * A segment can only be deleted once all older segments are gone, since it may hold acknowledgements for them.
+	 */
+	private void deleteAcknowledgedSegments() {
+		while (!segments.isEmpty() && segments.getFirst() != current && segments.getFirst().pendingCount == 0) {
+			Segment segment = segments.removeFirst();
+			if (!segment.file.delete()) logger.debug("Unable to delete journal segment " + segment.file);
+		}
+	}
+
+
+	private synchronized void waitForCommit(long sequence) {
+		try {
+			while (committed < sequence && !closed)
+				wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Force pending records to disk whenever some are appended, sharing each flush among all records appended since the previous one.
+	 */
+	private void flushContinuously() {
+		while (true) {
+			long target;
+			MappedByteBuffer buffer;
+			synchronized (this) {
+				try {
+					while (!closed && committed == appended)
+						wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (committed == appended) return;
+				target = appended;
+				buffer = current.buffer;
+			}
+			try {
+				buffer.force();
+			} catch (RuntimeException e) {
+				/* Release waiting producers anyway rather than blocking them forever */
+				logger.error("Unable to force journal records to disk: " + e.getMessage());
+			}
+			synchronized (this) {
+				committed = target;
+				notifyAll();
+			}
+		}
+	}
+
+
+	/**
+	 * Make all records durable and close the journal.  Messages not yet acknowledged will be recovered the next time the journal is opened.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+		}
+		synchronized (this) {
+			if (current != null && current.buffer != null) current.buffer.force();
+			committed = appended;
+			notifyAll();
+		}
+	}
+
+
+	/**
+	 * Enable or disable synchronous commit (enabled by default).
+	 * When enabled, appending a message waits until its record has been forced to disk by the next group commit.
+	 * 
+	 * @param synchronousCommit true to wait for durability when appending, false to return immediately
+	 */
+	public void setSynchronousCommit(boolean synchronousCommit) {
+		this.synchronousCommit = synchronousCommit;
+	}
+
+
+	public boolean isSynchronousCommit() {
+		return synchronousCommit;
+	}
+
+
+	/**
+	 * Get the number of journaled messages not yet acknowledged.
+	 * 
+	 * @return a number of messages
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+
+	public File getDirectory() {
+		return directory;
+	}
+
+
+	private static byte[] writeMessage(Entry entry) throws IOException {
+		Payload payload = entry.getPayload();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_ENQUEUED);
+		out.writeLong(entry.journalId);
+		out.writeUTF(payload.getClass().getName());
+		out.writeUTF(payload.getCharacterEncoding());
+		out.writeInt(payload.getExpiry());
+		out.writeInt(payload.getMaximumPayloadSize());
+		out.writeByte(entry.getPriority().ordinal());
+		out.writeLong(entry.getQueuedTime());
+		out.writeUTF(entry.getCollapseKey() != null ? entry.getCollapseKey() : "");
+		out.writeUTF(entry.getDevice().getToken());
+		byte[] json = payload.toString().getBytes("UTF-8");
+		out.writeInt(json.length);
+		out.write(json);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+
+	private static PayloadPerDevice readMessage(long journalId, byte[] body) throws Exception {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		in.readByte();
+		in.readLong();
+		String className = in.readUTF();
+		String characterEncoding = in.readUTF();
+		int expiry = in.readInt();
+		int maximumPayloadSize = in.readInt();
+		PayloadPerDevice.PRIORITY priority = PayloadPerDevice.PRIORITY.values()[in.readByte()];
+		long queuedTime = in.readLong();
+		String collapseKey = in.readUTF();
+		String token = in.readUTF();
+		byte[] json = new byte[in.readInt()];
+		in.readFully(json);
+		String rawJSON = new String(json, "UTF-8");
+		Payload payload = null;
+		/* Never run a constructor of a class which is not a payload, as a damaged segment could name any class */
+		Class<?> payloadClass = Class.forName(className, false, PushQueueJournal.class.getClassLoader());
+		if (payloadClass != RawPayload.class && Payload.class.isAssignableFrom(payloadClass)) {
+			try {
+				payload = (Payload) payloadClass.getConstructor(String.class).newInstance(rawJSON);
+			} catch (NoSuchMethodException e) {
+			}
+		} else if (payloadClass != RawPayload.class) {
+			logger.warn("Journaled message " + journalId + " names " + className + " which is not a payload class, recovering it as a raw payload");
+		}
+		if (payload == null || payload.getMaximumPayloadSize() != maximumPayloadSize) payload = new RawPayload(rawJSON.getBytes(characterEncoding), maximumPayloadSize);
+		payload.setCharacterEncoding(characterEncoding);
+		payload.setExpiry(expiry);
+		PayloadPerDevice message = new PayloadPerDevice(payload, token);
+		message.setPriority(priority);
+		message.setQueuedTime(queuedTime);
+		if (collapseKey.length() > 0) message.setCollapseKey(collapseKey);
+		return new Entry(message, journalId);
+	}
+
+
+	/**
+	 * A message recorded in the journal, along with its journal id.
+	 */
+	static class Entry extends PayloadPerDevice {
+
+		private final long journalId;
+
+
+		Entry(PayloadPerDevice message, long journalId) {
+			super(message.getPayload(), message.getDevice(), message.getPriority());
+			setQueuedTime(message.getQueuedTime());
+			setCollapseKey(message.getCollapseKey());
+			this.journalId = journalId;
+		}
+	}
+
+
+	/**
+	 * A segment file, and the number of messages it holds that were not acknowledged yet.
+	 */
+	private static class Segment {
+
+		private final File file;
+		private final long number;
+		private MappedByteBuffer buffer;
+		private int pendingCount;
+
+
+		Segment(File file) {
+			this.file = file;
+			long number = 0;
+			try {
+				number = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+			}
+			this.number = number;
+		}
+	}
+
+}
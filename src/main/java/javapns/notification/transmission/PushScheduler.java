@@ -0,0 +1,387 @@
+package javapns.notification.transmission;
+
+import java.util.*;
+
+import javapns.notification.*;
+
+import org.apache.log4j.*;
+
+/**
+ * <p>Holds messages until their delivery time, then adds them to a {@link PushQueue}.</p>
+ * 
+ * <p>Pending messages are kept in a hierarchical timing wheel:  {@value #LEVELS} wheels of {@value #SLOTS} slots each,
+ * where each slot of a wheel covers a full turn of the wheel below it.  Scheduling or cancelling a message takes
+ * constant time no matter how many messages are pending, and a single ticker thread releases due messages
+ * (moving messages down from upper wheels as time goes by), so millions of messages can be scheduled
+ * without a thread or a timer per message.</p>
+ * 
+ * <p>Delivery times are rounded up to the scheduler's tick duration (100 milliseconds by default).
+ * Messages due at the same tick are released in the order they were scheduled.
+ * Messages are not journaled until they are released into the queue.  If the queue refuses a message
+ * (by throwing an exception), the error is logged and the scheduler moves on to the next message.</p>
+ * 
+ * <p>Usage:</p>
+ * <pre>
+ * PushQueue queue = Push.queue(keystore, password, production, 4);
+ * PushScheduler scheduler = new PushScheduler(queue);
+ * scheduler.schedule(new PayloadPerDevice(payload, device), deliveryDate);</pre>
+ */
+public class PushScheduler {
+
+	private static final Logger logger = Logger.getLogger(PushScheduler.class);
+
+	private static final int WHEEL_BITS = 6;
+	private static final int SLOTS = 1 << WHEEL_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 6;
+
+	/* Messages further away than this are parked in the top wheel and rescheduled when they come down */
+	private static final long MAX_DELTA = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+	private static final long DEFAULT_TICK_DURATION = 100;
+
+	private static final Comparator<ScheduledMessage> SCHEDULING_ORDER = new Comparator<ScheduledMessage>() {
+
+		public int compare(ScheduledMessage a, ScheduledMessage b) {
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
+
+	private final PushQueue queue;
+	private final long tickDuration;
+	private final long startTime;
+
+	/* Each slot is the sentinel of a circular doubly-linked list of scheduled messages */
+	private final ScheduledMessage[][] wheels = new ScheduledMessage[LEVELS][SLOTS];
+	private long currentTick = 0;
+	private int pendingCount = 0;
+	private long nextSequence = 0;
+
+	private Thread ticker;
+	private boolean running = false;
+
+
+	/**
+	 * Create a scheduler feeding a queue, with the default tick duration (100 milliseconds).
+	 * 
+	 * @param queue the queue to which messages are added when they are due
+	 */
+	public PushScheduler(PushQueue queue) {
+		this(queue, DEFAULT_TICK_DURATION);
+	}
+
+
+	/**
+	 * Create a scheduler feeding a queue.
+	 * 
+	 * @param queue the queue to which messages are added when they are due
+	 * @param tickDuration the precision of delivery times, in milliseconds
+	 */
+	public PushScheduler(PushQueue queue, long tickDuration) {
+		if (tickDuration <= 0) throw new IllegalArgumentException("Tick duration must be greater than zero");
+		this.queue = queue;
+		this.tickDuration = tickDuration;
+		this.startTime = System.currentTimeMillis();
+		for (int level = 0; level < LEVELS; level++)
+			for (int slot = 0; slot < SLOTS; slot++)
+				wheels[level][slot] = new ScheduledMessage(null, 0, 0);
+	}
+
+
+	/**
+	 * Schedule a message for delivery at a given time.
+	 * If that time has already passed, the message is added to the queue right away.
+	 * 
+	 * @param message a payload/device pair
+	 * @param deliveryTime the time at which the message should be added to the queue
+	 * @return a handle which can be used to cancel the message
+	 */
+	public ScheduledMessage schedule(PayloadPerDevice message, Date deliveryTime) {
+		return schedule(message, deliveryTime.getTime());
+	}
+
+
+	/**
+	 * Schedule a message for delivery after a delay.
+	 * 
+	 * @param message a payload/device pair
+	 * @param delay a number of milliseconds to wait before adding the message to the queue
+	 * @return a handle which can be used to cancel the message
+	 */
+	public ScheduledMessage scheduleAfter(PayloadPerDevice message, long delay) {
+		return schedule(message, System.currentTimeMillis() + delay);
+	}
+
+
+	/**
+	 * Schedule a message for delivery at a given time.
+	 * If that time has already passed, the message is added to the queue right away.
+	 * 
+	 * @param message a payload/device pair
+	 * @param deliveryTime the time at which the message should be added to the queue, in milliseconds (as returned by System.currentTimeMillis())
+	 * @return a handle which can be used to cancel the message
+	 */
+	public ScheduledMessage schedule(PayloadPerDevice message, long deliveryTime) {
+		/* Round up, so that a message is never released before its delivery time */
+		long tick = (Math.max(deliveryTime - startTime, 0) + tickDuration - 1) / tickDuration;
+		ScheduledMessage scheduled = new ScheduledMessage(message, deliveryTime, tick);
+		synchronized (this) {
+			if (pendingCount == 0) currentTick = Math.max(currentTick, tickNow());
+			scheduled.sequence = nextSequence++;
+			if (tick > currentTick) {
+				insert(scheduled);
+				pendingCount++;
+				startTicker();
+				notifyAll();
+				return scheduled;
+			}
+		}
+		queue.add(message);
+		scheduled.delivered = true;
+		return scheduled;
+	}
+
+
+	/**
+	 * Cancel a scheduled message, if it was not released yet.
+	 * 
+	 * @param scheduled a handle returned by one of the schedule methods
+	 * @return true if the message was cancelled, false if it was already released or cancelled
+	 */
+	public synchronized boolean cancel(ScheduledMessage scheduled) {
+		if (scheduled.released || scheduled.delivered || scheduled.cancelled) return false;
+		scheduled.unlink();
+		scheduled.cancelled = true;
+		pendingCount--;
+		return true;
+	}
+
+
+	/**
+	 * Get the number of messages waiting for their delivery time.
+	 * 
+	 * @return a number of messages
+	 */
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+
+
+	/**
+	 * Stop releasing messages.  Pending messages are kept, and the scheduler resumes as soon as another message is scheduled.
+	 */
+	public synchronized void stop() {
+		running = false;
+		notifyAll();
+	}
+
+
+	public PushQueue getQueue() {
+		return queue;
+	}
+
+
+	public long getTickDuration() {
+		return tickDuration;
+	}
+
+
+	private long tickNow() {
+		return (System.currentTimeMillis() - startTime) / tickDuration;
+	}
+
+
+	/**
+	 * Link a message in the slot matching its tick, in the lowest wheel which covers it.
+	 * A message already due is linked in the next tick's slot.
+	 */
+	private void insert(ScheduledMessage scheduled) {
+		long tick = Math.max(Math.min(scheduled.tick, currentTick + MAX_DELTA), currentTick + 1);
+		long delta = tick - currentTick;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1))))
+			level++;
+		int slot = (int) ((tick >>> (WHEEL_BITS * level)) & SLOT_MASK);
+		scheduled.linkBefore(wheels[level][slot]);
+	}
+
+
+	private void startTicker() {
+		if (running) return;
+		running = true;
+		ticker = new Thread(new Runnable() {
+
+			public void run() {
+				tick();
+			}
+		}, "JavaPNS push scheduler");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+
+	/**
+	 * Advance the wheels one tick at a time, releasing due messages outside of the lock so that
+	 * a full queue slows down the ticker without blocking callers scheduling new messages.
+	 */
+	private void tick() {
+		List<ScheduledMessage> due = new ArrayList<ScheduledMessage>();
+		int queued = 0;
+		try {
+			while (true) {
+				synchronized (this) {
+					try {
+						while (running && Thread.currentThread() == ticker && (pendingCount == 0 || currentTick >= tickNow())) {
+							if (pendingCount == 0) wait();
+							else wait(Math.max(startTime + (currentTick + 1) * tickDuration - System.currentTimeMillis(), 1));
+						}
+					} catch (InterruptedException e) {
+						running = false;
+					}
+					/* Also end if the scheduler was stopped and restarted with a new ticker in the meantime */
+					if (!running || Thread.currentThread() != ticker) return;
+					long target = tickNow();
+					while (currentTick < target && pendingCount > 0)
+						advance(due);
+					if (pendingCount == 0) currentTick = target;
+				}
+				for (queued = 0; queued < due.size() && !Thread.currentThread().isInterrupted(); queued++) {
+					ScheduledMessage scheduled = due.get(queued);
+					try {
+						queue.add(scheduled.message);
+						scheduled.delivered = true;
+					} catch (RuntimeException e) {
+						if (Thread.currentThread().isInterrupted()) break;
+						logger.error("Unable to queue scheduled message: " + e.getMessage(), e);
+					}
+				}
+				/* An interrupted ticker ends, and the messages it did not queue are scheduled again below */
+				if (queued < due.size()) return;
+				due.clear();
+				queued = 0;
+			}
+		} finally {
+			synchronized (this) {
+				for (int i = queued; i < due.size(); i++) {
+					ScheduledMessage scheduled = due.get(i);
+					scheduled.released = false;
+					insert(scheduled);
+					pendingCount++;
+				}
+				if (Thread.currentThread() == ticker) {
+					running = false;
+					ticker = null;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Move to the next tick:  cascade upper wheels whose slot just came around, then collect the messages due.
+	 */
+	private void advance(List<ScheduledMessage> due) {
+		int first = due.size();
+		currentTick++;
+		int levels = 1;
+		while (levels < LEVELS && (currentTick & ((1L << (WHEEL_BITS * levels)) - 1)) == 0)
+			levels++;
+		for (int level = levels - 1; level > 0; level--) {
+			ScheduledMessage slot = wheels[level][(int) ((currentTick >>> (WHEEL_BITS * level)) & SLOT_MASK)];
+			while (slot.next != slot) {
+				ScheduledMessage scheduled = slot.next;
+				scheduled.unlink();
+				if (scheduled.tick <= currentTick) release(scheduled, due);
+				else insert(scheduled);
+			}
+		}
+		ScheduledMessage slot = wheels[0][(int) (currentTick & SLOT_MASK)];
+		while (slot.next != slot) {
+			ScheduledMessage scheduled = slot.next;
+			scheduled.unlink();
+			if (scheduled.tick <= currentTick) release(scheduled, due);
+			else insert(scheduled);
+		}
+		/* Messages cascaded from upper wheels may have been scheduled before those already waiting in the lower slot */
+		if (due.size() - first > 1) Collections.sort(due.subList(first, due.size()), SCHEDULING_ORDER);
+	}
+
+
+	private void release(ScheduledMessage scheduled, List<ScheduledMessage> due) {
+		scheduled.released = true;
+		pendingCount--;
+		due.add(scheduled);
+	}
+
+
+	/**
+	 * A message waiting in a scheduler, linked in one of the timing wheel's slots.
+	 */
+	public static class ScheduledMessage {
+
+		private final PayloadPerDevice message;
+		private final long deliveryTime;
+		private final long tick;
+		private long sequence;
+		private volatile boolean released;
+		private volatile boolean delivered;
+		private volatile boolean cancelled;
+
+		private ScheduledMessage previous = this;
+		private ScheduledMessage next = this;
+
+
+		private ScheduledMessage(PayloadPerDevice message, long deliveryTime, long tick) {
+			this.message = message;
+			this.deliveryTime = deliveryTime;
+			this.tick = tick;
+		}
+
+
+		private void linkBefore(ScheduledMessage sentinel) {
+			previous = sentinel.previous;
+			next = sentinel;
+			sentinel.previous.next = this;
+			sentinel.previous = this;
+		}
+
+
+		private void unlink() {
+			previous.next = next;
+			next.previous = previous;
+			previous = this;
+			next = this;
+		}
+
+
+		public PayloadPerDevice getMessage() {
+			return message;
+		}
+
+
+		/**
+		 * Get the time at which this message was scheduled to be added to the queue.
+		 * 
+		 * @return a time in milliseconds
+		 */
+		public long getDeliveryTime() {
+			return deliveryTime;
+		}
+
+
+		/**
+		 * Indicates if this message was released into the queue.
+		 * 
+		 * @return true if the message was added to the queue
+		 */
+		public boolean isDelivered() {
+			return delivered;
+		}
+
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+}
@@ -0,0 +1,259 @@
+package org.json;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map for JSONObjects, which usually hold only a few keys (an "aps"
+ * dictionary has between one and six). Up to a threshold, keys and values are
+ * kept side by side in a single array and looked up by a linear scan, which
+ * takes far less memory than a HashMap and its entry objects. Past the
+ * threshold, the map moves its entries to a LinkedHashMap.
+ * <p>
+ * Both forms iterate in insertion order.
+ */
+class CompactMap extends AbstractMap {
+
+	/**
+	 * The number of keys past which entries move to a hash map.
+	 */
+	static final int THRESHOLD = 8;
+
+	/**
+	 * Keys at even indexes, each followed by its value.
+	 */
+	private Object[] table;
+
+	private int size;
+
+	/**
+	 * The hash map holding the entries once the threshold is exceeded.
+	 */
+	private Map<Object, Object> map;
+
+	private Set entrySet;
+
+
+	CompactMap() {
+	}
+
+
+	private int indexOf(Object key) {
+		for (int i = 0; i < this.size; i += 1) {
+			Object k = this.table[i << 1];
+			if (k == key || (k != null && k.equals(key))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Indicates if entries are still kept in the array, in which case they
+	 * can be read by index without creating entry objects.
+	 */
+	boolean isCompact() {
+		return this.map == null;
+	}
+
+
+	Object keyAt(int i) {
+		return this.table[i << 1];
+	}
+
+
+	Object valueAt(int i) {
+		return this.table[(i << 1) + 1];
+	}
+
+
+	public int size() {
+		return this.map != null ? this.map.size() : this.size;
+	}
+
+
+	public boolean containsKey(Object key) {
+		return this.map != null ? this.map.containsKey(key) : indexOf(key) >= 0;
+	}
+
+
+	public Object get(Object key) {
+		if (this.map != null) {
+			return this.map.get(key);
+		}
+		int i = indexOf(key);
+		return i >= 0 ? this.table[(i << 1) + 1] : null;
+	}
+
+
+	public Object put(Object key, Object value) {
+		if (this.map != null) {
+			return this.map.put(key, value);
+		}
+		int i = indexOf(key);
+		if (i >= 0) {
+			Object previous = this.table[(i << 1) + 1];
+			this.table[(i << 1) + 1] = value;
+			return previous;
+		}
+		if (this.size == THRESHOLD) {
+			this.map = new LinkedHashMap<Object, Object>();
+			for (i = 0; i < this.size; i += 1) {
+				this.map.put(this.table[i << 1], this.table[(i << 1) + 1]);
+			}
+			this.table = null;
+			this.size = 0;
+			return this.map.put(key, value);
+		}
+		if (this.table == null) {
+			this.table = new Object[4];
+		} else if (this.table.length == this.size << 1) {
+			Object[] grown = new Object[Math.min(this.table.length * 2, THRESHOLD << 1)];
+			System.arraycopy(this.table, 0, grown, 0, this.table.length);
+			this.table = grown;
+		}
+		this.table[this.size << 1] = key;
+		this.table[(this.size << 1) + 1] = value;
+		this.size += 1;
+		return null;
+	}
+
+
+	public Object remove(Object key) {
+		if (this.map != null) {
+			return this.map.remove(key);
+		}
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		Object previous = this.table[(i << 1) + 1];
+		removeAt(i);
+		return previous;
+	}
+
+
+	private void removeAt(int i) {
+		int moved = (this.size - i - 1) << 1;
+		if (moved > 0) {
+			System.arraycopy(this.table, (i + 1) << 1, this.table, i << 1, moved);
+		}
+		this.size -= 1;
+		this.table[this.size << 1] = null;
+		this.table[(this.size << 1) + 1] = null;
+	}
+
+
+	public void clear() {
+		this.map = null;
+		this.table = null;
+		this.size = 0;
+	}
+
+
+	public Set entrySet() {
+		if (this.entrySet == null) {
+			this.entrySet = new AbstractSet() {
+
+				public Iterator iterator() {
+					return CompactMap.this.map != null ? CompactMap.this.map.entrySet().iterator() : new EntryIterator();
+				}
+
+
+				public int size() {
+					return CompactMap.this.size();
+				}
+			};
+		}
+		return this.entrySet;
+	}
+
+
+	private class EntryIterator implements Iterator {
+
+		private int next = 0;
+		private int last = -1;
+
+
+		public boolean hasNext() {
+			return this.next < CompactMap.this.size;
+		}
+
+
+		public Object next() {
+			if (this.next >= CompactMap.this.size) {
+				throw new NoSuchElementException();
+			}
+			this.last = this.next;
+			this.next += 1;
+			return new Entry(CompactMap.this.table[this.last << 1], CompactMap.this.table[(this.last << 1) + 1]);
+		}
+
+
+		public void remove() {
+			if (this.last < 0 || CompactMap.this.map != null) {
+				throw new IllegalStateException();
+			}
+			removeAt(this.last);
+			this.next = this.last;
+			this.last = -1;
+		}
+	}
+
+
+	private class Entry implements Map.Entry {
+
+		private final Object key;
+		private Object value;
+
+
+		Entry(Object key, Object value) {
+			this.key = key;
+			this.value = value;
+		}
+
+
+		public Object getKey() {
+			return this.key;
+		}
+
+
+		public Object getValue() {
+			return this.value;
+		}
+
+
+		public Object setValue(Object value) {
+			Object previous = this.value;
+			this.value = value;
+			CompactMap.this.put(this.key, value);
+			return previous;
+		}
+
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry e = (Map.Entry) o;
+			return (this.key == null ? e.getKey() == null : this.key.equals(e.getKey())) && (this.value == null ? e.getValue() == null : this.value.equals(e.getValue()));
+		}
+
+
+		public int hashCode() {
+			return (this.key == null ? 0 : this.key.hashCode()) ^ (this.value == null ? 0 : this.value.hashCode());
+		}
+
+
+		public String toString() {
+			return this.key + "=" + this.value;
+		}
+	}
+
+}
@@ -392,13 +392,13 @@ public class JSONArray {
      */
     public String join(String separator) throws JSONException {
         int len = length();
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
 
         for (int i = 0; i < len; i += 1) {
             if (i > 0) {
                 sb.append(separator);
             }
-            sb.append(JSONObject.valueToString(this.myArrayList.get(i)));
+            JSONObject.appendValue(this.myArrayList.get(i), sb);
         }
         return sb.toString();
     }
@@ -856,13 +856,34 @@ public class JSONArray {
      */
     public String toString() {
         try {
-            return '[' + join(",") + ']';
+            StringBuilder sb = new StringBuilder();
+            append(sb);
+            return sb.toString();
         } catch (Exception e) {
             return null;
         }
     }
 
 
+    /**
+     * Append the JSON text of this JSONArray, as toString() would produce it,
+     * without intermediate strings.
+     * @param sb The builder to append to.
+     * @throws JSONException If the array contains an invalid number.
+     */
+    void append(StringBuilder sb) throws JSONException {
+        int len = length();
+        sb.append('[');
+        for (int i = 0; i < len; i += 1) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            JSONObject.appendValue(this.myArrayList.get(i), sb);
+        }
+        sb.append(']');
+    }
+
+
     /**
      * Make a prettyprinted JSON text of this JSONArray.
      * Warning: This method assumes that the data structure is acyclical.
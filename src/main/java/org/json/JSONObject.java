@@ -30,7 +30,6 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Method;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeSet;
@@ -139,12 +138,33 @@ public class JSONObject {
 	 */
 	public static final Object NULL = new Null();
 
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * The escape sequences of ASCII characters, or null for characters which
+	 * are written as is.
+	 */
+	private static final String[] ESCAPES = new String[0x80];
+
+	static {
+		for (int c = 0; c < ' '; c += 1) {
+			ESCAPES[c] = "\\u00" + HEX[c >> 4] + HEX[c & 0xF];
+		}
+		ESCAPES['\b'] = "\\b";
+		ESCAPES['\t'] = "\\t";
+		ESCAPES['\n'] = "\\n";
+		ESCAPES['\f'] = "\\f";
+		ESCAPES['\r'] = "\\r";
+		ESCAPES['"'] = "\\\"";
+		ESCAPES['\\'] = "\\\\";
+	}
+
 
 	/**
 	 * Construct an empty JSONObject.
 	 */
 	public JSONObject() {
-		this.map = new HashMap();
+		this.map = new CompactMap();
 	}
 
 
@@ -232,7 +252,7 @@ public class JSONObject {
 	 *  the JSONObject.
 	 */
 	public JSONObject(Map map) {
-		this.map = (map == null) ? new HashMap() : map;
+		this.map = (map == null) ? new CompactMap() : map;
 	}
 
 
@@ -245,7 +265,7 @@ public class JSONObject {
 	 * @param includeSuperClass - Tell whether to include the super class properties.
 	 */
 	public JSONObject(Map map, boolean includeSuperClass) {
-		this.map = new HashMap();
+		this.map = new CompactMap();
 		if (map != null) {
 			Iterator i = map.entrySet().iterator();
 			while (i.hasNext()) {
@@ -1095,56 +1115,53 @@ public class JSONObject {
 		if (string == null || string.length() == 0) {
 			return "\"\"";
 		}
+		StringBuilder sb = new StringBuilder(string.length() + 4);
+		quote(string, sb);
+		return sb.toString();
+	}
 
-		char b;
-		char c = 0;
-		int i;
-		int len = string.length();
-		StringBuffer sb = new StringBuffer(len + 4);
-		String t;
 
+	/**
+	 * Append a string in double quotes with backslash sequences in all the
+	 * right places, as quote(String) would produce it. Runs of characters which
+	 * need no escaping are appended in one go, and escape sequences come from a
+	 * table instead of being built for each character.
+	 * @param string A String
+	 * @param sb The builder to append to.
+	 */
+	static void quote(String string, StringBuilder sb) {
+		if (string == null || string.length() == 0) {
+			sb.append("\"\"");
+			return;
+		}
+		int len = string.length();
+		int start = 0;
 		sb.append('"');
-		for (i = 0; i < len; i += 1) {
-			b = c;
-			c = string.charAt(i);
-			switch (c) {
-				case '\\':
-				case '"':
-					sb.append('\\');
-					sb.append(c);
-					break;
-				case '/':
-					if (b == '<') {
-						sb.append('\\');
-					}
-					sb.append(c);
-					break;
-				case '\b':
-					sb.append("\\b");
-					break;
-				case '\t':
-					sb.append("\\t");
-					break;
-				case '\n':
-					sb.append("\\n");
-					break;
-				case '\f':
-					sb.append("\\f");
-					break;
-				case '\r':
-					sb.append("\\r");
-					break;
-				default:
-					if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
-						t = "000" + Integer.toHexString(c);
-						sb.append("\\u" + t.substring(t.length() - 4));
-					} else {
-						sb.append(c);
+		for (int i = 0; i < len; i += 1) {
+			char c = string.charAt(i);
+			String escape;
+			if (c < 0x80) {
+				escape = ESCAPES[c];
+				if (escape == null) {
+					if (c != '/' || i == 0 || string.charAt(i - 1) != '<') {
+						continue;
 					}
+					escape = "\\/";
+				}
+				sb.append(string, start, i);
+				sb.append(escape);
+			} else if (c < '\u00a0' || (c >= '\u2000' && c < '\u2100')) {
+				sb.append(string, start, i);
+				sb.append('\\').append('u');
+				sb.append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF]);
+				sb.append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+			} else {
+				continue;
 			}
+			start = i + 1;
 		}
+		sb.append(string, start, len);
 		sb.append('"');
-		return sb.toString();
 	}
 
 
@@ -1288,23 +1305,49 @@ public class JSONObject {
 	 */
 	public String toString() {
 		try {
-			Iterator keys = keys();
-			StringBuffer sb = new StringBuffer("{");
+			StringBuilder sb = new StringBuilder(16 + 32 * this.map.size());
+			append(sb);
+			return sb.toString();
+		} catch (Exception e) {
+			return null;
+		}
+	}
 
-			while (keys.hasNext()) {
-				if (sb.length() > 1) {
+
+	/**
+	 * Append the JSON text of this JSONObject, as toString() would produce it,
+	 * in a single pass over the entries and without intermediate strings.
+	 * @param sb The builder to append to.
+	 * @throws JSONException If the object contains an invalid number.
+	 */
+	void append(StringBuilder sb) throws JSONException {
+		sb.append('{');
+		if (this.map instanceof CompactMap && ((CompactMap) this.map).isCompact()) {
+			CompactMap compact = (CompactMap) this.map;
+			for (int i = 0; i < compact.size(); i += 1) {
+				if (i > 0) {
 					sb.append(',');
 				}
-				Object o = keys.next();
-				sb.append(quote(o.toString()));
+				quote(compact.keyAt(i).toString(), sb);
 				sb.append(':');
-				sb.append(valueToString(this.map.get(o)));
+				appendValue(compact.valueAt(i), sb);
 			}
 			sb.append('}');
-			return sb.toString();
-		} catch (Exception e) {
-			return null;
+			return;
+		}
+		boolean first = true;
+		Iterator entries = this.map.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry entry = (Map.Entry) entries.next();
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			quote(entry.getKey().toString(), sb);
+			sb.append(':');
+			appendValue(entry.getValue(), sb);
 		}
+		sb.append('}');
 	}
 
 
@@ -1402,11 +1445,34 @@ public class JSONObject {
 	 * @throws JSONException If the value is or contains an invalid number.
 	 */
 	static String valueToString(Object value) throws JSONException {
+		if (value instanceof String) {
+			return quote((String) value);
+		}
+		StringBuilder sb = new StringBuilder();
+		appendValue(value, sb);
+		return sb.toString();
+	}
+
+
+	/**
+	 * Append the JSON text of an Object value, as valueToString(Object) would
+	 * produce it. Nested objects and arrays are appended to the same builder.
+	 * @param value The value to be serialized.
+	 * @param sb The builder to append to.
+	 * @throws JSONException If the value is or contains an invalid number.
+	 */
+	static void appendValue(Object value, StringBuilder sb) throws JSONException {
+		if (value instanceof String) {
+			quote((String) value, sb);
+			return;
+		}
 		if (value == null || value.equals(null)) {
-			return "null";
+			sb.append("null");
+			return;
 		}
 		if (value instanceof JSONRawValue) {
-			return value.toString();
+			sb.append(value.toString());
+			return;
 		}
 		if (value instanceof JSONString) {
 			Object o;
@@ -1416,26 +1482,63 @@ public class JSONObject {
 				throw new JSONException(e);
 			}
 			if (o instanceof String) {
-				return (String) o;
+				sb.append((String) o);
+				return;
 			}
 			throw new JSONException("Bad value from toJSONString: " + o);
 		}
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			sb.append(((Number) value).longValue());
+			return;
+		}
 		if (value instanceof Number) {
-			return numberToString((Number) value);
+			sb.append(numberToString((Number) value));
+			return;
 		}
-		if (value instanceof Boolean || value instanceof JSONObject || value instanceof JSONArray) {
-			return value.toString();
+		if (value instanceof Boolean) {
+			sb.append(value.toString());
+			return;
+		}
+		if (value instanceof JSONObject) {
+			appendNested((JSONObject) value, sb);
+			return;
+		}
+		if (value instanceof JSONArray) {
+			appendNested((JSONArray) value, sb);
+			return;
 		}
 		if (value instanceof Map) {
-			return new JSONObject((Map) value).toString();
+			appendNested(new JSONObject((Map) value), sb);
+			return;
 		}
 		if (value instanceof Collection) {
-			return new JSONArray((Collection) value).toString();
+			appendNested(new JSONArray((Collection) value), sb);
+			return;
 		}
 		if (value.getClass().isArray()) {
-			return new JSONArray(value).toString();
+			appendNested(new JSONArray(value), sb);
+			return;
+		}
+		quote(value.toString(), sb);
+	}
+
+
+	/**
+	 * Append a nested object or array. Like toString(), a nested value which
+	 * cannot be serialized is written as null.
+	 */
+	private static void appendNested(Object value, StringBuilder sb) {
+		int mark = sb.length();
+		try {
+			if (value instanceof JSONObject) {
+				((JSONObject) value).append(sb);
+			} else {
+				((JSONArray) value).append(sb);
+			}
+		} catch (Exception e) {
+			sb.setLength(mark);
+			sb.append("null");
 		}
-		return quote(value.toString());
 	}
 
 